@@ -20,7 +20,15 @@
 # OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 # SOFTWARE.
 
+import hashlib
+import csv
+import json
 import random
+import re
+import tempfile
+import threading
+from concurrent.futures import ThreadPoolExecutor
+from typing import Set, Union
 from yaml import safe_load as yaml_load
 
 from jvm import *
@@ -70,6 +78,88 @@ class JavaGenerator(AxGenerator):
     def __iter__(self):
         pass
 
+    def support_sources(self) -> List[Path]:
+        """
+        Sources that every generated test depends on and are the same for all tests, which can
+        thereby be compiled once and shared by all tests, see share_support_sources()
+        :return: paths to the support .java files, or empty if there are none
+        """
+        return []
+
+    def share_support_sources(self):
+        """
+        Stop putting support_sources() under the directory of every generated test, as they
+        are provided to all tests by a shared classpath instead
+        """
+        pass
+
+
+def index_seed(seed: int, index: int) -> int:
+    # Seed of the index-th test of a generator seeded by seed, independent of other tests
+    return random.Random(f'{seed}/{index}').randint(0, 0xFFFFFFFF)
+
+
+class PrefetchGenerator(JavaGenerator):
+    """
+    PrefetchGenerator wraps a generator whose tests are determined by their indices (i.e., having
+    generate(index)), and runs num_workers of the generator in parallel to generate tests ahead
+    into the generator's out_dir, at most depth tests ahead of the consumer. Tests are still
+    returned in the order of their indices, so they don't depend on num_workers. Workers are
+    threads since generators mostly wait for their subprocesses (e.g., ruby, jfuzz).
+    """
+
+    def __init__(self, generator: JavaGenerator, num_workers: int, depth: int):
+        script_check(hasattr(generator, 'generate'), f'Generator cannot generate by index: {generator}')
+        script_check(depth >= num_workers > 0, 'Prefetch depth should be no less than workers, and workers > 0')
+        self.generator = generator
+        self.num_workers = num_workers
+        self.depth = depth
+        self._cond = threading.Condition()
+        self._ready: Dict[int, Union[Path, BaseException]] = {}
+        self._next_to_generate = 0
+        self._next_to_return = 0
+        self._workers: List[threading.Thread] = []
+
+    def __next__(self) -> Path:
+        with self._cond:
+            while self._next_to_return not in self._ready:
+                self._cond.wait()
+            res = self._ready.pop(self._next_to_return)
+            self._next_to_return += 1
+            self._cond.notify_all()
+        if isinstance(res, BaseException):
+            raise res
+        return res
+
+    def __iter__(self):
+        if len(self._workers) == 0:
+            self._workers = [threading.Thread(target=self._work, name=f'generator-{k}', daemon=True)
+                             for k in range(self.num_workers)]
+            for w in self._workers:
+                w.start()
+        return self
+
+    def _work(self):
+        while True:
+            with self._cond:
+                while self._next_to_generate - self._next_to_return >= self.depth:
+                    self._cond.wait()
+                index = self._next_to_generate
+                self._next_to_generate += 1
+            try:
+                res = self.generator.generate(index)
+            except BaseException as e:
+                res = e  # Raise to the consumer when it reaches this test
+            with self._cond:
+                self._ready[index] = res
+                self._cond.notify_all()
+
+    def support_sources(self) -> List[Path]:
+        return self.generator.support_sources()
+
+    def share_support_sources(self):
+        self.generator.share_support_sources()
+
 
 #
 # Java*Fuzzer: A Random Java Code Generator
@@ -90,20 +180,26 @@ class JavaFuzzer(JavaGenerator):
         self._fuzzer_util_java_file = home / 'rb' / 'FuzzerUtils.java'
         script_check(self._fuzzer_util_java_file.exists(),
                      f'File `FuzzerUtils.javas` does not exist in {JavaFuzzer.NAME}\'s home: {self.home}')
+        self._copy_fuzzer_util = True
         self._curr_index = 0
-        if seed is not None: random.seed(seed)
+        self._seed = seed if seed is not None else random.randint(0, 0xFFFFFFFF)
 
     def __next__(self) -> Path:
         self._curr_index += 1
+        return self.generate(self._curr_index)
 
-        class_dir = self.out_dir / str(self._curr_index)
+    def generate(self, index: int) -> Path:
+        class_dir = self.out_dir / str(index)
         res = Command.mkdir(class_dir, can_exist=True)
         script_check(res.retcode == 0, f'Fail to mkdir for {class_dir}: {res.output}')
 
+        # Fuzzer.rb has no option for seeds, seed Ruby's rand before loading it
         java_file = class_dir / 'Test.java'
         with java_file.open('w', encoding='utf-8') as opened_java_file:
             res = Command.redirected_run(f'ruby'
                                          f' -I {self.load_path.absolute()}'
+                                         f" -e 'srand(ARGV.shift.to_i); load(ARGV.shift)'"
+                                         f' {index_seed(self._seed, index)}'
                                          f' {self.fuzzer.absolute()}'
                                          f' -f {self.conf.absolute()}',
                                          stdout=opened_java_file,
@@ -111,11 +207,18 @@ class JavaFuzzer(JavaGenerator):
                                          timeout=1 * 60)
             script_check(res.retcode == 0, f'{self.NAME} failed to generate java file: {java_file.read_text()}')
 
-        res = Command.copy(self._fuzzer_util_java_file, class_dir)
-        script_check(res.retcode == 0, f'Failed to copy FuzzerUtils.java to {class_dir}: {res.output}')
+        if self._copy_fuzzer_util:
+            res = Command.copy(self._fuzzer_util_java_file, class_dir)
+            script_check(res.retcode == 0, f'Failed to copy FuzzerUtils.java to {class_dir}: {res.output}')
 
         return java_file
 
+    def support_sources(self) -> List[Path]:
+        return [self._fuzzer_util_java_file]
+
+    def share_support_sources(self):
+        self._copy_fuzzer_util = False
+
     def __iter__(self):
         # Invoked when iterator is created, used to do
         # initialization before iterating inside items
@@ -147,7 +250,7 @@ class JFuzz(JavaGenerator):
         self.max_nested_loop = 3
         self.max_nested_try_catch = 2
         self._curr_index = 0
-        if seed is not None: random.seed(seed)
+        self._seed = seed if seed is not None else random.randint(0, 0xFFFFFFFF)
 
     def set_max_stmt_list_size(self, size):
         self.max_stmt_list_size = size
@@ -163,15 +266,17 @@ class JFuzz(JavaGenerator):
 
     def __next__(self) -> Path:
         self._curr_index += 1
+        return self.generate(self._curr_index)
 
-        class_dir = self.out_dir / str(self._curr_index)
+    def generate(self, index: int) -> Path:
+        class_dir = self.out_dir / str(index)
         res = Command.mkdir(class_dir, can_exist=True)
         script_check(res.retcode == 0, f'Fail to mkdir for {class_dir}: {res.output}')
 
         java_file = class_dir / 'Test.java'
         with java_file.open('w', encoding='utf-8') as opened_java_file:
             res = Command.redirected_run(f'{self.jfuzz}'
-                                         f' -s {random.randint(0, 0xFFFFFFFF)}'
+                                         f' -s {index_seed(self._seed, index)}'
                                          f' -d {self.max_expr_depth}'
                                          f' -l {self.max_stmt_list_size}'
                                          f' -i {self.max_nested_branch}'
@@ -278,6 +383,8 @@ class Artemis:
         self.min_loop_trip = 32
         self.max_loop_trip = 256
         self.bricks: Optional[Path] = None
+        self.brick_blacklist: Optional[Path] = None
+        self.classpath: List[str] = []
 
     def update_policy(self, policy: str):
         script_check(policy in self.POLICIES, f"Unsupported policy: {policy}")
@@ -286,9 +393,17 @@ class Artemis:
     def update_bricks(self, bricks: Path):
         self.bricks = bricks
 
+    def update_brick_blacklist(self, blacklist: Path):
+        # Read afresh by every mutation once it exists, see BrickBlacklist
+        self.brick_blacklist = blacklist
+
     def update_extra_opts(self, opts: dict):
         self.extra_opts = opts
 
+    def update_classpath(self, classpath: List[str]):
+        # Where dependencies of tests are in addition to tests' own directories
+        self.classpath = classpath
+
     def update_min_max_loop_trips(self, min_val: int, max_val: int):
         script_check(0 <= min_val <= max_val, "Min/max values must satisfy 0<=min<=max")
         self.min_loop_trip = min_val
@@ -300,6 +415,9 @@ class Artemis:
         x_opt_list = [f'{k}:{self.extra_opts[k]}' for k in self.extra_opts]
         x_opt = f"-X{','.join(x_opt_list)}" if len(x_opt_list) > 0 else ""
         brick_opt = f"-b {self.bricks.absolute()}" if self.bricks is not None else ""
+        if self.brick_blacklist is not None and self.brick_blacklist.exists():
+            brick_opt += f" -B {self.brick_blacklist.absolute()}"
+        cp_opt = f"-l {':'.join(self.classpath)}" if len(self.classpath) > 0 else ""
         result = self.java.jar_run(self.jar_path,
                                    main_class=None,
                                    main_args=f'-v'
@@ -309,6 +427,7 @@ class Artemis:
                                              f' -m {self.min_loop_trip}'
                                              f' -M {self.max_loop_trip}'
                                              f' {brick_opt}'
+                                             f' {cp_opt}'
                                              f' -o {out_dir}'
                                              f' -i {file.absolute()}',
                                    timeout=timeout)
@@ -317,6 +436,79 @@ class Artemis:
         return ArtemisMutateResult(out_dir / file.name, result.output)
 
 
+class BrickBlacklist:
+    """
+    BrickBlacklist blames compilation errors of mutants on the code bricks they fall in, and
+    blacklists a brick once it's blamed for blacklist_after errors. Artemis records the lines
+    every brick spans in a BRICKS file next to the mutant, one span per line: {id} {start} {end}.
+    The blacklist is the file given to Artemis by its "-B" option, listing a brick id per line;
+    errors blamed on bricks not yet blacklisted are kept in a .failures file next to it. Both
+    persist across campaigns. Only the writer's process updates them, each by a rename.
+    """
+
+    BRICKS_NAME = 'BRICKS'
+    _JAVAC_ERROR = re.compile(r'^(.+):(\d+): error: ', re.MULTILINE)
+
+    def __init__(self, blacklist_file: Path, blacklist_after: int):
+        self.blacklist_file = blacklist_file
+        self.failures_file = blacklist_file.parent / f'{blacklist_file.name}.failures'
+        self.blacklist_after = blacklist_after
+        self._blacklist: Set[int] = set()
+        self._failures: Dict[int, int] = {}
+        if blacklist_file.exists():
+            for line in blacklist_file.read_text(encoding='utf-8').splitlines():
+                line = line.strip()
+                if len(line) > 0 and not line.startswith('#'):
+                    self._blacklist.add(int(line))
+        if self.failures_file.exists():
+            failures = json.loads(self.failures_file.read_text(encoding='utf-8'))
+            self._failures = {int(k): v for k, v in failures.items()}
+
+    def __len__(self):
+        return len(self._blacklist)
+
+    @staticmethod
+    def blame(mutant_file: Path, err_msg: str) -> Set[int]:
+        # Return ids of bricks spanning lines of mutant_file where javac reports errors
+        bricks_file = mutant_file.parent / BrickBlacklist.BRICKS_NAME
+        if not bricks_file.exists():
+            return set()
+        spans = []
+        for line in bricks_file.read_text(encoding='utf-8').splitlines():
+            brick_id, start, end = line.split()
+            spans.append((int(brick_id), int(start), int(end)))
+        blamed = set()
+        for match in BrickBlacklist._JAVAC_ERROR.finditer(err_msg):
+            if Path(match.group(1)).name != mutant_file.name:
+                continue
+            line_no = int(match.group(2))
+            blamed.update(brick_id for brick_id, start, end in spans if start <= line_no <= end)
+        return blamed
+
+    def record(self, mutant_file: Path, err_msg: str) -> List[int]:
+        # Blame the compilation error and return ids of bricks that are newly blacklisted
+        newly = []
+        for brick_id in self.blame(mutant_file, err_msg) - self._blacklist:
+            self._failures[brick_id] = self._failures.get(brick_id, 0) + 1
+            if self._failures[brick_id] >= self.blacklist_after:
+                del self._failures[brick_id]
+                self._blacklist.add(brick_id)
+                newly.append(brick_id)
+        if len(newly) > 0:
+            self._replace(self.blacklist_file,
+                          '# Code bricks to never use, see BrickBlacklist\n'
+                          + ''.join(f'{i}\n' for i in sorted(self._blacklist)))
+        self._replace(self.failures_file, json.dumps(self._failures))
+        return newly
+
+    @staticmethod
+    def _replace(file: Path, content: str):
+        # Mutating processes read the blacklist anytime, never let them see a partial one
+        tmp_file = file.parent / f'.{file.name}.tmp'
+        tmp_file.write_text(content, encoding='utf-8')
+        os.replace(tmp_file, file)
+
+
 #
 # Conf
 #
@@ -329,11 +521,13 @@ def parse_java_conf(key_path: str, java_conf: dict) -> dict:
     script_check((java_conf['home'] / 'bin' / 'java').exists(),
                  f'{key_path}.home is incorrect: command `java` does not exist')
     check_conf_type(f'{key_path}.classpath', java_conf['classpath'], list)
+    check_conf_type(f'{key_path}.javac_service', java_conf['javac_service'], bool)
     return java_conf
 
 
 def parse_jvm_conf(key_path: str, jvm_conf: dict) -> dict:
     check_conf_type(f'{key_path}.options', jvm_conf['options'], list)
+    check_conf_type(f'{key_path}.early_kill', jvm_conf['early_kill'], bool)
     jvm_type = check_conf_type(f'{key_path}.type', jvm_conf['type'], str)
     if jvm_type == 'host-art':
         host_home_str = check_conf_type(f'{key_path}.host_home', jvm_conf['host_home'], str)
@@ -366,6 +560,9 @@ def parse_jvm_conf(key_path: str, jvm_conf: dict) -> dict:
         script_check((jvm_conf['java_home'] / 'bin' / 'java').exists(),
                      f'{key_path}.java_home is incorrect: command `java` does not exist')
         check_conf_type(f'{key_path}.classpath', jvm_conf['classpath'], list)
+        check_conf_type(f'{key_path}.prespawn', jvm_conf['prespawn'], int)
+        check_conf_type(f'{key_path}.ref_oracle', jvm_conf['ref_oracle'], bool)
+        check_conf_type(f'{key_path}.mutant_batch', jvm_conf['mutant_batch'], int)
     elif jvm_type == 'openj9':
         home_str = check_conf_type(f'{key_path}.java_home', jvm_conf['java_home'], str)
         jvm_conf['java_home'] = check_conf_dir(f'{key_path}.java_home', home_str)
@@ -374,6 +571,9 @@ def parse_jvm_conf(key_path: str, jvm_conf: dict) -> dict:
         script_check((jvm_conf['java_home'] / 'bin' / 'java').exists(),
                      f'{key_path}.java_home is incorrect: command `java` does not exist')
         check_conf_type(f'{key_path}.classpath', jvm_conf['classpath'], list)
+        check_conf_type(f'{key_path}.prespawn', jvm_conf['prespawn'], int)
+        check_conf_type(f'{key_path}.ref_oracle', jvm_conf['ref_oracle'], bool)
+        check_conf_type(f'{key_path}.mutant_batch', jvm_conf['mutant_batch'], int)
     elif jvm_type == 'graal':
         home_str = check_conf_type(f'{key_path}.java_home', jvm_conf['java_home'], str)
         jvm_conf['java_home'] = check_conf_dir(f'{key_path}.java_home', home_str)
@@ -382,6 +582,9 @@ def parse_jvm_conf(key_path: str, jvm_conf: dict) -> dict:
         script_check((jvm_conf['java_home'] / 'bin' / 'java').exists(),
                      f'{key_path}.java_home is incorrect: command `java` does not exist')
         check_conf_type(f'{key_path}.classpath', jvm_conf['classpath'], list)
+        check_conf_type(f'{key_path}.prespawn', jvm_conf['prespawn'], int)
+        check_conf_type(f'{key_path}.ref_oracle', jvm_conf['ref_oracle'], bool)
+        check_conf_type(f'{key_path}.mutant_batch', jvm_conf['mutant_batch'], int)
     return jvm_conf
 
 
@@ -401,6 +604,15 @@ def parse_artemis_conf(key_path: str, ax_conf: dict) -> dict:
 
     check_conf_type(f'{key_path}.extra_opts', ax_conf['extra_opts'], dict)
 
+    blacklist_str = check_conf_type(f'{key_path}.brick_blacklist', ax_conf['brick_blacklist'], str)
+    if blacklist_str == "none" or blacklist_str == "None":
+        ax_conf['brick_blacklist'] = None
+    else:
+        ax_conf['brick_blacklist'] = Path(blacklist_str)
+        check_conf_dir(f'{key_path}.brick_blacklist', str(ax_conf['brick_blacklist'].parent))
+    blacklist_after = check_conf_type(f'{key_path}.blacklist_after', ax_conf['blacklist_after'], int)
+    script_check(blacklist_after > 0, f'{key_path}.blacklist_after should be positive: {blacklist_after}')
+
     return ax_conf
 
 
@@ -410,6 +622,11 @@ def parse_generator_conf(key_path: str, gen_conf: dict) -> dict:
 
     which_gen = gen_conf['name']
     # Check generator options according to generator
+    if which_gen == JavaFuzzer.NAME or which_gen == JFuzz.NAME:
+        workers = check_conf_type(f'{key_path}.workers', gen_conf['workers'], int)
+        prefetch = check_conf_type(f'{key_path}.prefetch', gen_conf['prefetch'], int)
+        script_check(workers == 0 or prefetch >= workers,
+                     f'{key_path}.prefetch should be no less than {key_path}.workers')
     if which_gen == JavaFuzzer.NAME:
         conf_str = check_conf_type(f'{key_path}.conf', gen_conf['conf'], str)
         if conf_str == "none" or conf_str == "None":
@@ -429,6 +646,75 @@ def parse_generator_conf(key_path: str, gen_conf: dict) -> dict:
     return gen_conf
 
 
+def parse_pipeline_conf(key_path: str, pipe_conf: dict) -> dict:
+    check_conf_type(f'{key_path}.enabled', pipe_conf['enabled'], bool)
+    for key in ['mutate_workers', 'compile_workers', 'run_workers', 'queue_size']:
+        val = check_conf_type(f'{key_path}.{key}', pipe_conf[key], int)
+        script_check(val > 0, f'{key_path}.{key} should be positive: {val}')
+    return pipe_conf
+
+
+def parse_adaptive_timeout_conf(key_path: str, at_conf: dict) -> dict:
+    check_conf_type(f'{key_path}.enabled', at_conf['enabled'], bool)
+    for key in ['headroom', 'loop_share', 'min_timeout']:
+        val = at_conf[key]
+        script_check(type(val) in [int, float], f'{key_path}.{key} is not a number: {val}')
+        script_check(val >= 0, f'{key_path}.{key} should be non-negative: {val}')
+    script_check(at_conf['headroom'] >= ADAPTIVE_MIN_HEADROOM,
+                 f'{key_path}.headroom should be no less than {ADAPTIVE_MIN_HEADROOM}')
+    return at_conf
+
+
+def parse_confirm_conf(key_path: str, cf_conf: dict) -> dict:
+    check_conf_type(f'{key_path}.enabled', cf_conf['enabled'], bool)
+    check_conf_type(f'{key_path}.with_int', cf_conf['with_int'], bool)
+    for key in ['reruns', 'workers']:
+        val = check_conf_type(f'{key_path}.{key}', cf_conf[key], int)
+        script_check(val > 0, f'{key_path}.{key} should be positive: {val}')
+    return cf_conf
+
+
+def parse_sandbox_conf(key_path: str, sb_conf: dict) -> dict:
+    check_conf_type(f'{key_path}.cpu_limit', sb_conf['cpu_limit'], bool)
+    wall_slack = sb_conf['wall_slack']
+    script_check(type(wall_slack) in [int, float] and wall_slack >= 1,
+                 f'{key_path}.wall_slack should be a number no less than 1: {wall_slack}')
+    cpus_per_proc = check_conf_type(f'{key_path}.cpus_per_proc', sb_conf['cpus_per_proc'], int)
+    script_check(cpus_per_proc >= 0, f'{key_path}.cpus_per_proc should be non-negative: {cpus_per_proc}')
+    cgroup_str = check_conf_type(f'{key_path}.cgroup', sb_conf['cgroup'], str)
+    if cgroup_str == "none" or cgroup_str == "None":
+        sb_conf['cgroup'] = None
+    else:
+        sb_conf['cgroup'] = check_conf_dir(f'{key_path}.cgroup', cgroup_str)
+        script_check((sb_conf['cgroup'] / 'cgroup.procs').exists() and
+                     (sb_conf['cgroup'] / 'cgroup.controllers').exists(),
+                     f'{key_path}.cgroup is not a cgroup v2 directory: {cgroup_str}')
+        script_check(os.access(sb_conf['cgroup'], os.W_OK),
+                     f'{key_path}.cgroup is not delegated to us (not writable): {cgroup_str}')
+    memory_max = str(sb_conf['memory_max'])
+    if memory_max == "none" or memory_max == "None":
+        sb_conf['memory_max'] = None
+    else:
+        script_check(sb_conf['cgroup'] is not None, f'{key_path}.memory_max requires {key_path}.cgroup')
+        sb_conf['memory_max'] = memory_max
+    return sb_conf
+
+
+def parse_autoscale_conf(key_path: str, as_conf: dict) -> dict:
+    check_conf_type(f'{key_path}.enabled', as_conf['enabled'], bool)
+    min_proc = check_conf_type(f'{key_path}.min_proc', as_conf['min_proc'], int)
+    script_check(min_proc > 0, f'{key_path}.min_proc should be positive: {min_proc}')
+    for key in ['interval', 'max_load', 'min_mem_available', 'max_timeout_rate']:
+        val = as_conf[key]
+        script_check(type(val) in [int, float], f'{key_path}.{key} is not a number: {val}')
+        script_check(val > 0, f'{key_path}.{key} should be positive: {val}')
+    processors = check_conf_type(f'{key_path}.jvm_processors', as_conf['jvm_processors'], int)
+    script_check(processors >= 0, f'{key_path}.jvm_processors should be non-negative: {processors}')
+    max_heap = str(as_conf['jvm_max_heap'])
+    as_conf['jvm_max_heap'] = None if max_heap == "none" or max_heap == "None" else max_heap
+    return as_conf
+
+
 def parse_conf(key_path: str, conf: dict) -> dict:
     """
     Transform environment variable in conf to the variable's value
@@ -449,6 +735,8 @@ def read_conf(conf_path: Path) -> dict:
     check_conf_type('.rand_seed', conf_obj['rand_seed'], int)
     check_conf_type('.num_mutation', conf_obj['num_mutation'], int)
     check_conf_type('.save_timeouts', conf_obj['save_timeouts'], bool)
+    keep = check_conf_type('.keep_per_signature', conf_obj['keep_per_signature'], int)
+    script_check(keep >= 0, f'.keep_per_signature should be non-negative: {keep}')
 
     check_conf_type('.out_dir', conf_obj['out_dir'], str)
     conf_obj['out_dir'] = check_conf_dir('.out_dir', conf_obj['out_dir'])
@@ -460,21 +748,86 @@ def read_conf(conf_path: Path) -> dict:
     conf_obj['jvm'] = parse_jvm_conf('.jvm', conf_obj['jvm'])
 
     check_conf_type('.generator', conf_obj['generator'], dict)
+    # Generate, mutate, compile, and run tests in the scratch dir if it's given,
+    # the writer persists those interesting to out_dir and prunes the others
+    scratch_str = check_conf_type('.scratch_dir', conf_obj['scratch_dir'], str)
+    if scratch_str == "none" or scratch_str == "None":
+        conf_obj['scratch_dir'] = None
+    else:
+        conf_obj['scratch_dir'] = Path(scratch_str)
+        res = Command.mkdir(conf_obj['scratch_dir'], can_exist=True)
+        script_check(res.retcode == 0, f'Cannot mkdir for .scratch_dir {scratch_str}: {res.output}')
+        conf_obj['generator']['out_dir'] = scratch_str
     conf_obj['generator'] = parse_generator_conf('.generator', conf_obj['generator'])
 
+    # Reuse results of references across campaigns if the cache dir is given
+    ref_cache_str = check_conf_type('.ref_cache', conf_obj['ref_cache'], str)
+    if ref_cache_str == "none" or ref_cache_str == "None":
+        conf_obj['ref_cache'] = None
+    else:
+        conf_obj['ref_cache'] = Path(ref_cache_str)
+        res = Command.mkdir(conf_obj['ref_cache'], can_exist=True)
+        script_check(res.retcode == 0, f'Cannot mkdir for .ref_cache {ref_cache_str}: {res.output}')
+
     check_conf_type('.artemis', conf_obj['artemis'], dict)
     conf_obj['artemis'] = parse_artemis_conf('.artemis', conf_obj['artemis'])
 
+    check_conf_type('.pipeline', conf_obj['pipeline'], dict)
+    conf_obj['pipeline'] = parse_pipeline_conf('.pipeline', conf_obj['pipeline'])
+
+    check_conf_type('.adaptive_timeout', conf_obj['adaptive_timeout'], dict)
+    conf_obj['adaptive_timeout'] = parse_adaptive_timeout_conf('.adaptive_timeout', conf_obj['adaptive_timeout'])
+
+    check_conf_type('.confirm', conf_obj['confirm'], dict)
+    conf_obj['confirm'] = parse_confirm_conf('.confirm', conf_obj['confirm'])
+
+    check_conf_type('.sandbox', conf_obj['sandbox'], dict)
+    conf_obj['sandbox'] = parse_sandbox_conf('.sandbox', conf_obj['sandbox'])
+
+    check_conf_type('.autoscale', conf_obj['autoscale'], dict)
+    conf_obj['autoscale'] = parse_autoscale_conf('.autoscale', conf_obj['autoscale'])
+    # Fit more JVMs running tests onto the machine by fewer JIT/GC threads and smaller heaps,
+    # put before the JVM's options such that those explicitly given take precedence
+    if conf_obj['jvm']['type'] in ['hotspot', 'openj9', 'graal']:
+        fit_opts = []
+        if conf_obj['autoscale']['jvm_processors'] != 0:
+            fit_opts.append(f"-XX:ActiveProcessorCount={conf_obj['autoscale']['jvm_processors']}")
+        if conf_obj['autoscale']['jvm_max_heap'] is not None:
+            fit_opts.append(f"-Xmx{conf_obj['autoscale']['jvm_max_heap']}")
+        conf_obj['jvm']['options'] = fit_opts + conf_obj['jvm']['options']
+
     return conf_obj
 
 
-def create_java_from_conf(java_conf: dict):
+def create_java_from_conf(java_conf: dict, artemis_jar: Path):
     java = Java(java_conf['home'])
     java.set_default_classpath(java_conf['classpath'])
+    if java_conf['javac_service']:
+        java.enable_javac_service(artemis_jar)
     return java
 
 
-def create_jvm_from_conf(jvm_conf: dict, java: Java):
+def create_sandbox_from_conf(sb_conf: dict) -> Optional[Sandbox]:
+    if not sb_conf['cpu_limit'] and sb_conf['cpus_per_proc'] == 0 and sb_conf['cgroup'] is None:
+        return None
+    return Sandbox(sb_conf['cpu_limit'],
+                   sb_conf['wall_slack'],
+                   sb_conf['cpus_per_proc'],
+                   sb_conf['cgroup'],
+                   sb_conf['memory_max'])
+
+
+def create_autoscaler_from_conf(as_conf: dict) -> Optional[Autoscaler]:
+    if not as_conf['enabled']:
+        return None
+    return Autoscaler(as_conf['min_proc'],
+                      as_conf['interval'],
+                      as_conf['max_load'],
+                      as_conf['min_mem_available'],
+                      as_conf['max_timeout_rate'])
+
+
+def create_jvm_from_conf(jvm_conf: dict, java: Java, artemis_jar: Path, sandbox: Optional[Sandbox] = None):
     jvm = None
     if jvm_conf['type'] == 'host-art':
         jvm = HostArt(jvm_conf['host_home'], java)
@@ -487,17 +840,30 @@ def create_jvm_from_conf(jvm_conf: dict, java: Java):
     elif jvm_conf['type'] == 'hotspot':
         jvm = HotSpot(jvm_conf['java_home'])
         jvm.set_default_classpath(jvm_conf['classpath'])
+        jvm.enable_jvm_pool(jvm_conf['prespawn'])
     elif jvm_conf['type'] == 'openj9':
         jvm = OpenJ9(jvm_conf['java_home'])
         jvm.set_default_classpath(jvm_conf['classpath'])
+        jvm.enable_jvm_pool(jvm_conf['prespawn'])
     elif jvm_conf['type'] == 'graal':
         jvm = Graal(jvm_conf['java_home'])
         jvm.set_default_classpath(jvm_conf['classpath'])
+        jvm.enable_jvm_pool(jvm_conf['prespawn'])
     else:
         script_check(False, f"Unsupported jvm type: {jvm_conf['type']}")
     script_check(jvm is not None, f'Jvm is not created')
     script_check(jvm.is_alive(), f"Jvm is not alive: {jvm}")
     jvm.set_default_opts(jvm_conf['options'])
+    jvm.set_early_kill(jvm_conf['early_kill'])
+    if isinstance(jvm, HotSpot):
+        jvm.set_sandbox(sandbox)
+    # HotSpot-alike jvms compile by their own javac, share the setting with java
+    if isinstance(jvm, HotSpot) and java.javac_service is not None:
+        jvm.enable_javac_service(artemis_jar)
+    if isinstance(jvm, HotSpot) and jvm_conf['ref_oracle']:
+        jvm.enable_ref_oracle(artemis_jar)
+    if isinstance(jvm, HotSpot):
+        jvm.enable_mutant_batch(artemis_jar, jvm_conf['mutant_batch'])
     return jvm
 
 
@@ -521,9 +887,26 @@ def create_generator_from_conf(gen_conf: dict):
     else:
         script_check(False, f"Currently does not support generator: {gen_conf['name']}")
         assert False  # Workaround to dismiss following java_gen warnings
+    if gen_conf['name'] in [JavaFuzzer.NAME, JFuzz.NAME] and gen_conf['workers'] > 0:
+        java_gen = PrefetchGenerator(java_gen, gen_conf['workers'], gen_conf['prefetch'])
     return java_gen
 
 
+def share_support_classes(java_gen: JavaGenerator, jvm: JavaVM, artemis: Artemis,
+                          writer: 'TestResultWriter'):
+    # Compile sources that all tests depend on once, rather than copying and compiling them with
+    # every test and mutant. Art dexes all classes of a test together, thus still copies them.
+    sources = java_gen.support_sources()
+    if len(sources) == 0 or not isinstance(jvm, HotSpot):
+        return
+    support_dir = jvm.enable_support_classes(sources)
+    if support_dir is None:
+        return  # Fall back to compiling them with every test
+    java_gen.share_support_sources()
+    artemis.update_classpath([str(support_dir)])
+    writer.set_support_sources(sources)
+
+
 def create_artemis_from_conf(ax_conf: dict, java: Java):
     artemis = Artemis(ax_conf['jar'], java)
     artemis.update_policy(ax_conf['policy'])
@@ -532,9 +915,17 @@ def create_artemis_from_conf(ax_conf: dict, java: Java):
     artemis.update_extra_opts(ax_conf['extra_opts'])
     if ax_conf['code_bricks'] is not None:
         artemis.update_bricks(ax_conf['code_bricks'])
+    if ax_conf['brick_blacklist'] is not None:
+        artemis.update_brick_blacklist(ax_conf['brick_blacklist'])
     return artemis
 
 
+def create_brick_blacklist_from_conf(ax_conf: dict) -> Optional[BrickBlacklist]:
+    if ax_conf['brick_blacklist'] is None:
+        return None
+    return BrickBlacklist(ax_conf['brick_blacklist'], ax_conf['blacklist_after'])
+
+
 #
 # Test flow
 #
@@ -546,6 +937,10 @@ JFUZZ_PATH = Path('./jfuzz')
 
 MUTANTS_DIR_NAME = 'mutants'
 TIMEOUT_SPEC_CODE = 0xC0FFEE
+DIVERGED_SPEC_CODE = 0xD1FF  # Killed as it kept running after its output diverged, see OutputMonitor
+AX_NAME_PREFIX = 'ax$'  # Names Artemis synthesizes start with it, see io.artemis.AxNames
+REFERENCE_OUTPUT_NAME = 'reference.out'  # Whole output of a reference, see OutputDigest.spill()
+MUTANT_OUTPUT_NAME = 'mutant.out'  # Whole output of a mutant, see OutputDigest.spill()
 
 
 class MutantResult: pass
@@ -574,6 +969,19 @@ class MutantCompError(MutantResult):
         return self.mutant_file.parent
 
 
+class MutantDupError(MutantResult):
+    """
+    The mutant duplicates its reference or an earlier mutant of it, see java_fingerprint()
+    """
+    def __init__(self, mutant_file, mutation_msg):
+        self.mutant_file = mutant_file
+        self.mutation_msg = mutation_msg
+
+    @property
+    def mutant_dir(self):
+        return self.mutant_file.parent
+
+
 class MutantAllTmoError(MutantResult):
     """
     All runs timed-out
@@ -587,14 +995,52 @@ class MutantAllTmoError(MutantResult):
         return self.mutant_file.parent
 
 
+class DiffConfirmation:
+    """
+    Verdict of re-running the reference and the mutant of a difference, see MutantSteps.confirm():
+    - flaky: the reference's result changes across runs, or the mutant's difference does not
+      reproduce, or only reproduces sometimes (unless it's jit-only), e.g., a transient OOM;
+    - jit-only: the mutant reproduces the difference at least once, but never by the interpreter;
+    - deterministic: the mutant reproduces the difference every run (and by the interpreter).
+    Differences run by the interpreter are told only if with_int, otherwise never jit-only.
+    """
+
+    DETERMINISTIC = 'deterministic'
+    JIT_ONLY = 'jit-only'
+    FLAKY = 'flaky'
+
+    def __init__(self, reruns: int, ref_stable: int, mut_diffs: int, int_runs: int, int_diffs: int):
+        self.reruns = reruns
+        self.ref_stable = ref_stable  # reruns of the reference having the same result
+        self.mut_diffs = mut_diffs  # reruns of the mutant differing from the reference
+        self.int_runs = int_runs
+        self.int_diffs = int_diffs  # runs of the mutant by the interpreter differing
+        if ref_stable != reruns or mut_diffs == 0:
+            self.verdict = DiffConfirmation.FLAKY
+        elif int_runs != 0 and int_diffs == 0:
+            self.verdict = DiffConfirmation.JIT_ONLY
+        elif mut_diffs == reruns:
+            self.verdict = DiffConfirmation.DETERMINISTIC
+        else:
+            self.verdict = DiffConfirmation.FLAKY
+
+    def __str__(self):
+        desc = (f'{self.verdict}, reference stable {self.ref_stable}/{self.reruns}, '
+                f'mutant differs {self.mut_diffs}/{self.reruns}')
+        if self.int_runs != 0:
+            desc += f', mutant differs by interpreter {self.int_diffs}/{self.int_runs}'
+        return desc
+
+
 class MutantRunResult(MutantResult):
     """
     Successfully run mutants
     """
-    def __init__(self, mutant_file, mutation_msg, result):
+    def __init__(self, mutant_file, mutation_msg, result, confirmation=None):
         self.mutant_file = mutant_file
         self.mutation_msg = mutation_msg
         self.result: CommandResult = result
+        self.confirmation: Optional[DiffConfirmation] = confirmation  # None if never re-run
 
     @property
     def mutant_dir(self):
@@ -605,8 +1051,8 @@ class MutantRunResult(MutantResult):
         return self.result.retcode
 
     @property
-    def output(self):
-        return self.result.output
+    def output(self) -> OutputDigest:
+        return self.result.digest
 
 
 class TestResult:
@@ -618,6 +1064,13 @@ class TestResult:
 class RefTmoTestResult(TestResult): pass
 
 
+class RefCompErrTestResult(TestResult):
+
+    def __init__(self, ref_file, err_msg):
+        super(RefCompErrTestResult, self).__init__(ref_file)
+        self.err_msg = err_msg
+
+
 class NormalTestResult(TestResult):
 
     def __init__(self, ref_file, ref_result):
@@ -626,88 +1079,615 @@ class NormalTestResult(TestResult):
         self.mut_results: List[MutantResult] = []
 
 
-def run_test(ref_file: Path,
-             jvm: JavaVM, artemis: Artemis,
-             num_mutation: int, run_timeout: int) -> TestResult:
-    compilation_timeout = 30  # seconds
-    mutation_timeout = 30     # seconds
-
-    ref_dir = ref_file.parent
-    print(f'+ Run test: received reference {ref_file}, '
-          f'num-mutation: {num_mutation}, run-timeout: {run_timeout}s')
-
-    # Compile reference, should always compile
-    res = jvm.compile(ref_file, timeout=compilation_timeout)
-    script_check(res.clazz is not None, f"Failed to compile reference Java code: {ref_file}: {res.err_msg}")
+class MutantTask:
+    """
+    A mutant of a reference on its way through mutating, compiling, and running
+    """
+    def __init__(self, index: int, seed: int, mutant_dir: Path):
+        self.index = index
+        self.seed = seed
+        self.mutant_dir = mutant_dir
+        self.mutant_file: Optional[Path] = None
+        self.mutation_msg: Optional[str] = None
+        self.compile_result: Optional[JvmCompileResult] = None
+
+
+_JAVA_TOKEN = re.compile(r'''
+    (?P<space>\s+) |
+    (?P<comment>//[^\n]*|/\*.*?\*/) |
+    (?P<literal>"(?:\\.|[^"\\])*"|'(?:\\.|[^'\\])*') |
+    (?P<ident>[A-Za-z_$][A-Za-z0-9_$]*) |
+    (?P<operator>[-+*/%=<>!&|^~?:]+) |
+    (?P<other>.)
+''', re.DOTALL | re.VERBOSE)
+
+
+def java_fingerprint(source: str) -> str:
+    # Digest of the tokens of source, ignoring whitespaces and comments, and with names Artemis
+    # synthesized renamed by their first occurrences, such that mutants only differing in these
+    # have the same fingerprint. Operators are tokenized greedily, so "+ +" differs from "++".
+    tokens, names = [], {}
+    for match in _JAVA_TOKEN.finditer(source):
+        kind, token = match.lastgroup, match.group()
+        if kind == 'space' or kind == 'comment':
+            continue
+        if kind == 'ident' and token.startswith(AX_NAME_PREFIX):
+            token = names.setdefault(token, f'{AX_NAME_PREFIX}{len(names)}')
+        tokens.append(token)
+    return hashlib.sha256(bytes('\0'.join(tokens), encoding='utf-8')).hexdigest()
 
-    # Run the ref_file under JVM
-    print(f'- JVM exec: running reference under JVM, {ref_file}')
-    try:
-        # Allow tests to exit with !0 code
-        ref_result = jvm.run(res, timeout=run_timeout)
-    except TimeoutExpired as e:
-        print(f'- Timeout: run reference timed out under JVM, from {ref_file}: {e}')
-        return RefTmoTestResult(ref_file)  # skip references that are timeout
 
-    test_result = NormalTestResult(ref_file, ref_result)
+class MutantSteps:
+    """
+    Steps to test a mutant of a reference, one after another: mutate(), compile(), and run().
+    The former two return a MutantResult if they fail and the mutant stops there.
+    """
+    compilation_timeout = 30  # seconds
+    mutation_timeout = 30     # seconds
 
-    # Mutate until successfully run num_mutation times
-    succeeded_mutation, max_num_mutation = 0, 2 * num_mutation
-    for i in range(max_num_mutation):
-        ref_name = ref_dir.name
-        mutant_dir = ref_dir / MUTANTS_DIR_NAME / str(i)
+    def __init__(self,
+                 ref_file: Path, ref_result: CommandResult,
+                 jvm: JavaVM, artemis: Artemis, run_timeout: int,
+                 mutant_timeout: Optional[float] = None,
+                 ref_compile_result: Optional[JvmCompileResult] = None,
+                 confirm: Optional[dict] = None):
+        self.ref_file = ref_file
+        self.ref_result = ref_result  # kept in whole to watch mutants' outputs, see OutputMonitor
+        self.ref_digest = OutputDigest(ref_result.output)
+        # Fingerprints of the reference and its mutants so far, to skip duplicated mutants
+        self._fingerprints = {java_fingerprint(ref_file.read_text(encoding='utf-8', errors='replace'))}
+        self._fingerprints_lock = threading.Lock()  # mutate() may run in parallel, see StagePipeline
+        self.jvm = jvm
+        self.artemis = artemis
+        self.run_timeout = run_timeout
+        # Allow more time for mutants by default, see derive_mutant_timeout()
+        self.mutant_timeout = mutant_timeout if mutant_timeout is not None else run_timeout * 2
+        # Re-run differences to tell flaky ones if enabled, see confirm(); the reference is only
+        # compiled again to re-run if its result was cached
+        self.confirm_conf = confirm if confirm is not None and confirm['enabled'] else None
+        self._ref_compile_result = ref_compile_result
+        self._ref_compile_lock = threading.Lock()
+
+    def mutate(self, task: MutantTask) -> Optional[MutantResult]:
+        ref_file, mutant_dir = self.ref_file, task.mutant_dir
         res = Command.mkdir(mutant_dir, can_exist=True)
         script_check(res.retcode == 0, f'Cannot mkdir for {mutant_dir.absolute()}: {res.output}')
-        print(f'- Mutate {ref_name}: {succeeded_mutation}/{num_mutation}, {mutant_dir}')
 
-        res = artemis.mutate(ref_file,
-                             seed=random.randint(0, 0xFFFFFFFF),
-                             out_dir=mutant_dir,
-                             timeout=mutation_timeout)
+        res = self.artemis.mutate(ref_file,
+                                  seed=task.seed,
+                                  out_dir=mutant_dir,
+                                  timeout=self.mutation_timeout)
         if res.mutant is None:
             # Failed to mutate ref_file
-            test_result.mut_results.append(MutationError(mutant_dir, res.output))
-            continue
+            return MutationError(mutant_dir, res.output)
 
-        mutant_file = res.mutant
-        mutation_msg = res.output
+        task.mutant_file = res.mutant
+        task.mutation_msg = res.output
+
+        # Spend no javac or jvm time on duplicates, which different seeds may mutate to
+        fingerprint = java_fingerprint(task.mutant_file.read_text(encoding='utf-8', errors='replace'))
+        with self._fingerprints_lock:
+            duplicated = fingerprint in self._fingerprints
+            self._fingerprints.add(fingerprint)
+        if duplicated:
+            print(f'- Duplicate: skip mutant the same as an earlier one, {task.mutant_file}')
+            return MutantDupError(task.mutant_file, task.mutation_msg)
 
         # Copy every non-.java/.class/.dex file to mutant_dir
-        for f in ref_dir.iterdir():
+        for f in ref_file.parent.iterdir():
             if f.suffix not in ['.java', '.class', '.dex']: continue
             if f.name == ref_file.name: continue
-            res = Command.copy(f, mutant_dir)
+            # Hard link sources, which are never written; but compiling the
+            # mutant overwrites the classes (and dexes), which are thus copied
+            copy = Command.link if f.suffix == '.java' else Command.copy
+            res = copy(f, mutant_dir)
             script_check(res.retcode == 0, f'Cannot copy {f} to {mutant_dir}: {res.output}')
 
-        # Compile mutant
-        res = jvm.compile(mutant_file, timeout=compilation_timeout)
+        return None
+
+    def compile(self, task: MutantTask) -> Optional[MutantResult]:
+        res = self.jvm.compile(task.mutant_file, timeout=self.compilation_timeout)
         if res.clazz is None:
             # Failed to compile mutant file
-            test_result.mut_results.append(MutantCompError(mutant_file, mutation_msg, res.err_msg))
-            continue
+            return MutantCompError(task.mutant_file, task.mutation_msg, res.err_msg)
+        task.compile_result = res
+        return None
+
+    def run(self, task: MutantTask) -> MutantResult:
+        ref_file, ref_result, mutant_file = self.ref_file, self.ref_result, task.mutant_file
+        jvm, run_timeout, res = self.jvm, self.run_timeout, task.compile_result
 
         print(f'- JVM exec: running mutant under JVM, {mutant_file}')
-        try:
-            mut_result = jvm.run(res, timeout=run_timeout*2)  # allow more time for mutant
-        except TimeoutExpired as e:
-            print(f'- Timeout: run mutant timed out under JVM, from {ref_file}: {e}')
-            mut_result = CommandResult(TIMEOUT_SPEC_CODE, str(e))
+        if not jvm.is_batching():
+            mut_result = self._run_monitored(res)
+        else:
+            try:
+                mut_result = jvm.run_batched(res, timeout=self.mutant_timeout)
+            except TimeoutExpired as e:
+                print(f'- Timeout: run mutant timed out under JVM, from {ref_file}: {e}')
+                mut_result = CommandResult(TIMEOUT_SPEC_CODE, str(e))
+            if ref_result.retcode != mut_result.retcode or self.ref_digest != OutputDigest(mut_result.output):
+                # The difference may come from mutants run earlier in the same JVM, confirm it
+                print(f'- JVM exec: confirming difference of mutant in a new JVM, {mutant_file}')
+                mut_result = self._run_monitored(res)
+
+        if mut_result.retcode == DIVERGED_SPEC_CODE:
+            # Its output is truncated, which tells little about the difference (see DiffTriage),
+            # run it to the end for the whole output, unless it no longer differs that way
+            print(f'- JVM exec: re-running diverged mutant to the end, {mutant_file}')
+            whole_result = self._run_to_end(res)
+            if ref_result.retcode != whole_result.retcode or \
+                    self.ref_digest != OutputDigest(whole_result.output):
+                mut_result = whole_result
 
         if ref_result.retcode == TIMEOUT_SPEC_CODE == mut_result.retcode:
             print(f'- Timeout: both reference and mutant timed out: {mutant_file}')
             # Both ref_file and mutant_file timed out
-            test_result.mut_results.append(MutantAllTmoError(mutant_file, mutation_msg))
+            return MutantAllTmoError(mutant_file, task.mutation_msg)
         else:
-            # Successfully run a mutant
-            test_result.mut_results.append(MutantRunResult(mutant_file, mutation_msg, mut_result))
+            # Successfully run a mutant, keep its whole output only if it differs
+            digest = OutputDigest(mut_result.output)
+            confirmation = None
+            if ref_result.retcode != mut_result.retcode or self.ref_digest != digest:
+                digest.spill(mut_result.output, task.mutant_dir / MUTANT_OUTPUT_NAME)
+                # Mutants timing out are not differences and are saved as is, see TestResultWriter
+                if self.confirm_conf is not None and mut_result.retcode != TIMEOUT_SPEC_CODE:
+                    confirmation = self.confirm(task)
+            return MutantRunResult(mutant_file, task.mutation_msg, mut_result.compact(digest),
+                                   confirmation)
+
+    def confirm(self, task: MutantTask) -> Optional[DiffConfirmation]:
+        # Re-run the reference and the mutant of a difference (and the mutant by the interpreter
+        # if with_int) reruns times, all in parallel, to tell whether the difference reproduces;
+        # None if the reference cannot be re-run
+        ref_res = self._compile_ref()
+        if ref_res is None:
+            return None
+        reruns, with_int = self.confirm_conf['reruns'], self.confirm_conf['with_int']
+        print(f'- JVM exec: confirming difference of mutant by {reruns} re-runs, {task.mutant_file}')
+        with ThreadPoolExecutor(max_workers=self.confirm_conf['workers']) as executor:
+            ref_runs = [executor.submit(self._rerun, self.jvm.run_reference, ref_res,
+                                        timeout=self.run_timeout) for _ in range(reruns)]
+            mut_runs = [executor.submit(self._rerun, self.jvm.run, task.compile_result,
+                                        timeout=self.mutant_timeout) for _ in range(reruns)]
+            int_runs = [executor.submit(self._rerun, self.jvm.run, task.compile_result,
+                                        do_force=JavaVM.FORCED_INT, timeout=self.mutant_timeout)
+                        for _ in range(reruns if with_int else 0)]
+            ref_stable = sum(not self._differs(r.result()) for r in ref_runs)
+            mut_diffs = sum(self._differs(r.result()) for r in mut_runs)
+            int_diffs = sum(self._differs(r.result()) for r in int_runs)
+        return DiffConfirmation(reruns, ref_stable, mut_diffs, len(int_runs), int_diffs)
+
+    def _compile_ref(self) -> Optional[JvmCompileResult]:
+        # Mutants of a reference may be confirmed in parallel, see StagePipeline
+        with self._ref_compile_lock:
+            if self._ref_compile_result is None:
+                res = self.jvm.compile(self.ref_file, timeout=self.compilation_timeout)
+                if res.clazz is None:
+                    return None
+                self._ref_compile_result = res
+            return self._ref_compile_result
+
+    @staticmethod
+    def _rerun(run, compile_result: JvmCompileResult, **kwargs) -> CommandResult:
+        try:
+            return run(compile_result, **kwargs)
+        except TimeoutExpired as e:
+            return CommandResult(TIMEOUT_SPEC_CODE, str(e))
+
+    def _differs(self, result: CommandResult) -> bool:
+        # Whether the result differs from the reference's
+        return self.ref_result.retcode != result.retcode or self.ref_digest != OutputDigest(result.output)
+
+    def compact_ref_result(self, mut_results: List[MutantResult]) -> CommandResult:
+        # The reference's result to send to the writer, keeping its whole output only if any
+        # mutant differs, such that the writer can save it with the mutant
+        if any(isinstance(r, MutantRunResult) and
+               (r.retcode != self.ref_result.retcode or r.result.digest != self.ref_digest)
+               for r in mut_results):
+            self.ref_digest.spill(self.ref_result.output, self.ref_file.parent / REFERENCE_OUTPUT_NAME)
+        return self.ref_result.compact(self.ref_digest)
+
+    def _run_to_end(self, res: JvmCompileResult) -> CommandResult:
+        try:
+            return self.jvm.run(res, timeout=self.mutant_timeout)
+        except TimeoutExpired as e:
+            print(f'- Timeout: run mutant timed out under JVM, from {self.ref_file}: {e}')
+            return CommandResult(TIMEOUT_SPEC_CODE, str(e))
+
+    def _run_monitored(self, res: JvmCompileResult) -> CommandResult:
+        # Stop the mutant soon after its output diverges from the reference's, or it clearly hangs
+        # after writing all of the reference's output, rather than waiting it to exit or time out;
+        # diverged mutants exiting soon by themselves keep their whole outputs and exit codes
+        monitor = OutputMonitor(self.ref_result.output, stall_timeout=min(self.run_timeout, self.mutant_timeout),
+                                early_kill=self.jvm.early_kill)
+        try:
+            mut_result = self.jvm.run_monitored(res, monitor, timeout=self.mutant_timeout)
+        except TimeoutExpired as e:
+            print(f'- Timeout: run mutant timed out under JVM, from {self.ref_file}: {e}')
+            return CommandResult(TIMEOUT_SPEC_CODE, str(e))
+        if monitor.truncated:
+            print(f'- JVM exec: killed mutant early as its output diverged, from {self.ref_file}')
+            return CommandResult(DIVERGED_SPEC_CODE, mut_result.output)
+        return mut_result
+
+
+ADAPTIVE_MIN_HEADROOM = 1.5
+
+
+def derive_mutant_timeout(ref_time: float, run_timeout: int, max_loop_trip: int,
+                          adaptive_timeout: dict) -> float:
+    # The loops Artemis inserts repeat code the reference already runs, often in methods run
+    # many times, so a mutant's extra time scales with its reference's time: each of the up to
+    # max_loop_trip extra trips repeats code taking up to loop_share of the reference's time.
+    # Wait headroom times as long as that. The headroom lowers when the machine is overloaded,
+    # since ref_time was measured under the same load and already includes the slowdown. Never
+    # wait shorter than min_timeout, covering the jvm's startup, or longer than the static timeout.
+    headroom = adaptive_timeout['headroom']
+    load = os.getloadavg()[0] / (os.cpu_count() or 1)
+    if load > 1:
+        headroom = max(ADAPTIVE_MIN_HEADROOM, headroom / load)
+    expected = ref_time * (1 + max_loop_trip * adaptive_timeout['loop_share'])
+    return min(max(headroom * expected, adaptive_timeout['min_timeout']), run_timeout * 2)
+
+
+class RefResultCache:
+    """
+    RefResultCache persists results of references across campaigns, keyed by the digest of their
+    sources and the jvm's identity (see JavaVM.identity()), such that references visited again
+    (e.g., by ExistingTests) are neither compiled nor run again. An entry keeps the files the
+    compilation produced, the output, exit code, and time of the run, or that the reference
+    failed to compile or timed out. Entries are renamed into place once written, such that all
+    processes (and campaigns) can share the cache.
+    """
+
+    OK = 'ok'
+    COMP_ERR = 'comp-err'
+    TIMEOUT = 'timeout'
+
+    def __init__(self, cache_dir: Path, jvm_identity: str):
+        self.cache_dir = cache_dir
+        self.jvm_identity = jvm_identity
+
+    def key(self, ref_dir: Path) -> str:
+        digest = hashlib.sha256(bytes(self.jvm_identity, encoding='utf-8'))
+        for source in sorted(ref_dir.glob('*.java')):
+            digest.update(b'\0' + bytes(source.name, encoding='utf-8') + b'\0')
+            digest.update(source.read_bytes())
+        return digest.hexdigest()
+
+    def lookup(self, key: str, run_timeout: int) -> Optional[dict]:
+        # The entry of key if it still holds under run_timeout, None otherwise
+        try:
+            entry = json.loads((self._entry_dir(key) / 'entry.json').read_text(encoding='utf-8'))
+        except (OSError, ValueError):
+            return None
+        if entry['status'] == self.TIMEOUT and entry['timeout'] < run_timeout:
+            return None  # May finish given more time
+        if entry['status'] == self.OK and entry['time'] > run_timeout:
+            return None  # May time out given less time
+        return entry
+
+    def restore(self, key: str, ref_dir: Path) -> bool:
+        # Put the files the compilation produced back to ref_dir, as if it's just compiled
+        try:
+            for f in (self._entry_dir(key) / 'files').iterdir():
+                reflink_or_copy(f, ref_dir / f.name)
+        except OSError:
+            return False
+        return True
+
+    def store(self, key: str, entry: dict, files: List[Path]):
+        entry_dir = self._entry_dir(key)
+        tmp_dir = None
+        try:
+            tmp_dir = Path(tempfile.mkdtemp(prefix=f'.{key[:16]}-', dir=self.cache_dir))
+            (tmp_dir / 'files').mkdir()
+            for f in files:
+                # Not linked, the reference's files may be overwritten later
+                reflink_or_copy(f, tmp_dir / 'files' / f.name)
+            (tmp_dir / 'entry.json').write_text(json.dumps(entry), encoding='utf-8')
+            entry_dir.parent.mkdir(exist_ok=True)
+            if entry_dir.exists():
+                shutil.rmtree(entry_dir, ignore_errors=True)  # Outdated, e.g., timed out earlier
+            os.rename(tmp_dir, entry_dir)
+        except OSError:
+            pass  # Another process stored it meanwhile, or the cache is unavailable
+        finally:
+            if tmp_dir is not None:
+                shutil.rmtree(tmp_dir, ignore_errors=True)
+
+    def _entry_dir(self, key: str) -> Path:
+        return self.cache_dir / key[:2] / key
+
+
+def run_test(ref_file: Path,
+             jvm: JavaVM, artemis: Artemis,
+             num_mutation: int, run_timeout: int,
+             pipeline: Optional[dict] = None,
+             adaptive_timeout: Optional[dict] = None,
+             ref_cache: Optional[RefResultCache] = None,
+             confirm: Optional[dict] = None) -> TestResult:
+    compilation_timeout = MutantSteps.compilation_timeout
+
+    ref_dir = ref_file.parent
+    print(f'+ Run test: received reference {ref_file}, '
+          f'num-mutation: {num_mutation}, run-timeout: {run_timeout}s')
+
+    cache_key = ref_cache.key(ref_dir) if ref_cache is not None else None
+    cached = ref_cache.lookup(cache_key, run_timeout) if ref_cache is not None else None
+    if cached is not None and not ref_cache.restore(cache_key, ref_dir):
+        cached = None
+
+    ref_res = None  # The reference is not compiled if its result is cached
+    if cached is not None:
+        print(f"- Ref cache: reusing the result of reference ({cached['status']}), {ref_file}")
+        if cached['status'] == RefResultCache.COMP_ERR:
+            return RefCompErrTestResult(ref_file, cached['err_msg'])
+        elif cached['status'] == RefResultCache.TIMEOUT:
+            return RefTmoTestResult(ref_file)
+        ref_result = CommandResult(cached['retcode'], cached['output'], cached['cpu_time'])
+        ref_time = cached['time']
+    else:
+        # Compile reference, should always compile
+        existing = set(ref_dir.iterdir())
+        compile_start = time.time()
+        res = jvm.compile(ref_file, timeout=compilation_timeout)
+        compiled = [f for f in ref_dir.iterdir()
+                    if f.is_file() and (f not in existing or f.stat().st_mtime >= compile_start)]
+        if res.clazz is None:
+            print(f'- Failed to compile reference Java code: {ref_file}: {res.err_msg}')
+            if ref_cache is not None:
+                ref_cache.store(cache_key, {'status': RefResultCache.COMP_ERR,
+                                            'err_msg': res.err_msg}, [])
+            return RefCompErrTestResult(ref_file, res.err_msg)
+        ref_res = res
+
+        # Run the ref_file under JVM
+        print(f'- JVM exec: running reference under JVM, {ref_file}')
+        try:
+            # Allow tests to exit with !0 code
+            ref_result, ref_time = exec_time(jvm.run_reference, res, timeout=run_timeout)
+        except TimeoutExpired as e:
+            print(f'- Timeout: run reference timed out under JVM, from {ref_file}: {e}')
+            if ref_cache is not None:
+                ref_cache.store(cache_key, {'status': RefResultCache.TIMEOUT,
+                                            'timeout': run_timeout}, [])
+            return RefTmoTestResult(ref_file)  # skip references that are timeout
+
+        if ref_cache is not None:
+            ref_cache.store(cache_key, {'status': RefResultCache.OK,
+                                        'retcode': ref_result.retcode,
+                                        'output': ref_result.output,
+                                        'time': ref_time,
+                                        'cpu_time': ref_result.cpu_time}, compiled)
+
+    mutant_timeout = None
+    if adaptive_timeout is not None and adaptive_timeout['enabled']:
+        mutant_timeout = derive_mutant_timeout(ref_time, run_timeout, artemis.max_loop_trip, adaptive_timeout)
+        cpu_time = f'{ref_result.cpu_time:.2f}s' if ref_result.cpu_time is not None else 'unknown'
+        print(f'- JVM exec: reference took {ref_time:.2f}s (cpu: {cpu_time}), '
+              f'mutant-timeout: {mutant_timeout:.2f}s')
+
+    test_result = NormalTestResult(ref_file, ref_result)
+    steps = MutantSteps(ref_file, ref_result, jvm, artemis, run_timeout, mutant_timeout,
+                        ref_res, confirm)
+
+    if pipeline is not None and pipeline['enabled']:
+        test_result.mut_results = run_mutants_pipelined(steps, num_mutation, pipeline)
+        test_result.ref_result = steps.compact_ref_result(test_result.mut_results)
+        return test_result
+
+    # Mutate until successfully run num_mutation times
+    succeeded_mutation, max_num_mutation = 0, 2 * num_mutation
+    for i in range(max_num_mutation):
+        ref_name = ref_dir.name
+        mutant_dir = ref_dir / MUTANTS_DIR_NAME / str(i)
+        print(f'- Mutate {ref_name}: {succeeded_mutation}/{num_mutation}, {mutant_dir}')
+
+        task = MutantTask(i, random.randint(0, 0xFFFFFFFF), mutant_dir)
+        err = steps.mutate(task)
+        if err is None:
+            err = steps.compile(task)
+        if err is not None:
+            test_result.mut_results.append(err)
+            continue
+
+        test_result.mut_results.append(steps.run(task))
 
         succeeded_mutation += 1
         if succeeded_mutation >= num_mutation:
             break
 
+    test_result.ref_result = steps.compact_ref_result(test_result.mut_results)
     return test_result
 
 
+def run_mutants_pipelined(steps: MutantSteps, num_mutation: int, pipeline: dict) -> List[MutantResult]:
+    """
+    Test mutants by pipelining their steps, such that, e.g., mutating a mutant overlaps running
+    another. Each of the num_mutation mutants is given 2 attempts, as 2 * num_mutation attempts
+    are allowed in total when testing one by one. Seeds are drawn in advance and results are
+    ordered by mutants, so neither depends on the timing of the stages.
+    """
+    ref_dir = steps.ref_file.parent
+    max_attempts = 2
+    seeds = [random.randint(0, 0xFFFFFFFF) for _ in range(max_attempts * num_mutation)]
+    results: List[List[MutantResult]] = [[] for _ in range(num_mutation)]
+
+    def new_task(slot: int, attempt: int) -> MutantTask:
+        index = slot * max_attempts + attempt
+        mutant_dir = ref_dir / MUTANTS_DIR_NAME / str(index)
+        print(f'- Mutate {ref_dir.name}: mutant {slot}, attempt {attempt}, {mutant_dir}')
+        return MutantTask(index, seeds[index], mutant_dir)
+
+    def fail_or_retry(task: MutantTask, err: MutantResult):
+        slot, attempt = divmod(task.index, max_attempts)
+        results[slot].append(err)
+        if attempt + 1 < max_attempts:
+            pipeline_.submit(new_task(slot, attempt + 1))
+
+    def mutate(task: MutantTask) -> Optional[MutantTask]:
+        err = steps.mutate(task)
+        if err is not None:
+            return fail_or_retry(task, err)
+        return task
+
+    def compile_(task: MutantTask) -> Optional[MutantTask]:
+        err = steps.compile(task)
+        if err is not None:
+            return fail_or_retry(task, err)
+        return task
+
+    def run(task: MutantTask):
+        results[task.index // max_attempts].append(steps.run(task))
+
+    pipeline_ = StagePipeline([('mutate', pipeline['mutate_workers'], mutate),
+                               ('compile', pipeline['compile_workers'], compile_),
+                               ('run', pipeline['run_workers'], run)],
+                              queue_size=pipeline['queue_size'])
+    pipeline_.start()
+    try:
+        for slot in range(num_mutation):
+            pipeline_.submit(new_task(slot, 0))
+        pipeline_.join()
+    finally:
+        pipeline_.stop()
+    print(f'- Pipeline {ref_dir.name}: {pipeline_.format_utilization()}')
+
+    return [res for slot_results in results for res in slot_results]
+
+
+_HS_INTERNAL_ERROR = re.compile(r'^#\s+Internal Error \(([^)]*)\)', re.MULTILINE)
+_HS_SIGNAL = re.compile(r'^#\s+(SIG[A-Z0-9]+) \(0x[0-9a-fA-F]+\)', re.MULTILINE)
+_HS_PROBLEMATIC_FRAME = re.compile(r'^# Problematic frame:\n#\s*(.*)$', re.MULTILINE)
+_EXCEPTION = re.compile(r'^(?:Exception in thread "[^"]*" |Caused by: )?'
+                        r'((?:[\w$]+\.)+[\w$]*(?:Exception|Error))\b')
+_HEX = re.compile(r'0x[0-9a-fA-F]+')
+_NUMBER = re.compile(r'[-+]?\b\d+(?:\.\d+)?(?:[eE][-+]?\d+)?\b')
+_AX_NAME = re.compile(re.escape(AX_NAME_PREFIX) + r'[\w$]*')
+_LINE_NUMBER = re.compile(r':\d+\)')
+
+
+class DiffTriage:
+    """
+    DiffTriage clusters differences by their signatures once they're found, rather than leaving
+    deduplication to offline scripts. The signature of a difference is the first that applies of:
+    - crash: the internal error or signal, and the problematic frame HotSpot reports on crashing;
+    - exception: the type and top frames of an exception that only the mutant throws;
+    - exit: classes of the exit codes of the reference and the mutant;
+    - output: the first line of the mutant's output differing from the reference's.
+    Addresses, numbers, line numbers, and names Artemis synthesizes are normalized away. Only the
+    first keep_per_signature differences of a signature are worth saving in full (0 for all).
+    Truncated outputs (of mutants killed after diverging, see OutputMonitor) may lack what tells
+    the difference, e.g., the report of a crash, so they're never clustered and always saved.
+    """
+
+    TOP_FRAMES = 3
+
+    def __init__(self, keep_per_signature: int = 0):
+        self.keep_per_signature = keep_per_signature
+        self._ids: Dict[str, int] = {}
+        self._signatures: List[str] = []
+        self._counts: List[int] = []
+        self._representatives: List[List[int]] = []  # ids of differences saved in full
+
+    def classify(self, diff_id: int,
+                 ref_retcode: int, ref_output: str,
+                 mut_retcode: int, mut_output: str) -> Tuple[Optional[int], bool, bool]:
+        # Return the id of the difference's signature (None if unclustered), whether the signature
+        # is new, and whether to save the difference in full, in which case it represents the
+        # signature
+        if mut_retcode == DIVERGED_SPEC_CODE:
+            return None, False, True
+        signature = self.signature(ref_retcode, ref_output, mut_retcode, mut_output)
+        is_new = signature not in self._ids
+        if is_new:
+            self._ids[signature] = len(self._signatures)
+            self._signatures.append(signature)
+            self._counts.append(0)
+            self._representatives.append([])
+        sig_id = self._ids[signature]
+        self._counts[sig_id] += 1
+        to_save = self.keep_per_signature == 0 or self._counts[sig_id] <= self.keep_per_signature
+        if to_save:
+            self._representatives[sig_id].append(diff_id)
+        return sig_id, is_new, to_save
+
+    def count(self, sig_id: int) -> int:
+        return self._counts[sig_id]
+
+    def write_index(self, index_file: Path):
+        # Rewrite the index from signatures to their counts and representatives
+        with index_file.open('w', encoding='utf-8', newline='') as f:
+            writer = csv.writer(f)
+            writer.writerow(['signature_id', 'count', 'representatives', 'signature'])
+            for sig_id, signature in enumerate(self._signatures):
+                representatives = ' '.join(str(i) for i in self._representatives[sig_id])
+                writer.writerow([sig_id, self._counts[sig_id], representatives, signature])
+
+    @staticmethod
+    def signature(ref_retcode: int, ref_output: str, mut_retcode: int, mut_output: str) -> str:
+        crash = DiffTriage._crash(mut_output)
+        if crash is not None:
+            return f'crash|{crash}'
+        exception = DiffTriage._exception(ref_output, mut_output)
+        if exception is not None:
+            return f'exception|{exception}'
+        if ref_retcode != mut_retcode:
+            ref_class = DiffTriage._exit_class(ref_retcode)
+            return f'exit|{ref_class}->{DiffTriage._exit_class(mut_retcode)}'
+        ref_lines = ref_output.rstrip('\n').split('\n')
+        mut_lines = mut_output.rstrip('\n').split('\n')
+        for i, mut_line in enumerate(mut_lines):
+            if i >= len(ref_lines) or ref_lines[i] != mut_line:
+                return f'output|{DiffTriage._normalize(mut_line)}'
+        return 'output|<missing>'  # A prefix of the reference's output
+
+    @staticmethod
+    def _normalize(text: str) -> str:
+        text = _AX_NAME.sub(AX_NAME_PREFIX, _HEX.sub('0x', text))
+        return ' '.join(_NUMBER.sub('N', text).split())
+
+    @staticmethod
+    def _crash(output: str) -> Optional[str]:
+        error = _HS_INTERNAL_ERROR.search(output) or _HS_SIGNAL.search(output)
+        frame = _HS_PROBLEMATIC_FRAME.search(output)
+        if error is None and frame is None:
+            return None
+        error = DiffTriage._normalize(error.group(1)) if error is not None else 'unknown'
+        frame = DiffTriage._normalize(frame.group(1)) if frame is not None else 'unknown'
+        return f'{error}|{frame}'
+
+    @staticmethod
+    def _exception(ref_output: str, mut_output: str) -> Optional[str]:
+        ref_lines = set(ref_output.split('\n'))
+        mut_lines = mut_output.split('\n')
+        for i, line in enumerate(mut_lines):
+            match = _EXCEPTION.match(line)
+            if match is None or line in ref_lines:
+                continue
+            frames = []
+            for frame in mut_lines[i + 1:]:
+                frame = frame.strip()
+                if not frame.startswith('at ') or len(frames) >= DiffTriage.TOP_FRAMES:
+                    break
+                frames.append(_AX_NAME.sub(AX_NAME_PREFIX, _LINE_NUMBER.sub(')', frame)))
+            return '|'.join([match.group(1)] + frames)
+        return None
+
+    @staticmethod
+    def _exit_class(retcode: int) -> str:
+        if retcode == TIMEOUT_SPEC_CODE:
+            return 'timeout'
+        if retcode < 0:
+            try:
+                return signal.Signals(-retcode).name
+            except ValueError:
+                return f'signal-{-retcode}'
+        return 'ok' if retcode == 0 else f'exit-{retcode}'
+
+
 class WriterStat:
     @abstractmethod
     def ref_count(self): pass
@@ -751,59 +1731,102 @@ class WriterStat:
     @abstractmethod
     def inc_timeout_count(self): pass
 
+    @abstractmethod
+    def duplicate_count(self): pass
+
+    @abstractmethod
+    def inc_duplicate_count(self): pass
+
+    @abstractmethod
+    def signature_count(self): pass
+
+    @abstractmethod
+    def inc_signature_count(self): pass
+
+    @abstractmethod
+    def flaky_count(self): pass
+
+    @abstractmethod
+    def inc_flaky_count(self): pass
+
 
-class ProcSharedWriterStat(WriterStat):
+class LocalWriterStat(WriterStat):
+    """
+    Counters living in the writer's (i.e., the handler's) process, which is the only
+    process updating them; they're sent back to the main process in the end, see AxHandler
+    """
 
-    def __init__(self, manager: Manager):
-        self._ref_count = manager.Value('i', 0)
-        self._mut_count = manager.Value('i', 0)
-        self._diff_count = manager.Value('i', 0)
-        self._mutf_count = manager.Value('i', 0)
-        self._compf_count = manager.Value('i', 0)
-        self._mtmo_count = manager.Value('i', 0)
-        self._tmo_count = manager.Value('i', 0)
+    def __init__(self):
+        self._ref_count = 0
+        self._mut_count = 0
+        self._diff_count = 0
+        self._mutf_count = 0
+        self._compf_count = 0
+        self._mtmo_count = 0
+        self._tmo_count = 0
+        self._dup_count = 0
+        self._sig_count = 0
+        self._flaky_count = 0
 
     def ref_count(self):
-        return self._ref_count.value
+        return self._ref_count
 
     def inc_ref_count(self):
-        self._ref_count.value += 1
+        self._ref_count += 1
 
     def mut_count(self):
-        return self._mut_count.value
+        return self._mut_count
 
     def inc_mut_count(self):
-        self._mut_count.value += 1
+        self._mut_count += 1
 
     def diff_count(self):
-        return self._diff_count.value
+        return self._diff_count
 
     def inc_diff_count(self):
-        self._diff_count.value += 1
+        self._diff_count += 1
 
     def mutation_failure_count(self):
-        return self._mutf_count.value
+        return self._mutf_count
 
     def inc_mutation_failure_count(self):
-        self._mutf_count.value += 1
+        self._mutf_count += 1
 
     def compilation_failure_count(self):
-        return self._compf_count.value
+        return self._compf_count
 
     def inc_compilation_failure_count(self):
-        self._compf_count.value += 1
+        self._compf_count += 1
 
     def mutant_timeout_count(self):
-        return self._mtmo_count.value
+        return self._mtmo_count
 
     def inc_mutant_timeout_count(self):
-        self._mtmo_count.value += 1
+        self._mtmo_count += 1
 
     def timeout_count(self):
-        return self._tmo_count.value
+        return self._tmo_count
 
     def inc_timeout_count(self):
-        self._tmo_count.value += 1
+        self._tmo_count += 1
+
+    def duplicate_count(self):
+        return self._dup_count
+
+    def inc_duplicate_count(self):
+        self._dup_count += 1
+
+    def signature_count(self):
+        return self._sig_count
+
+    def inc_signature_count(self):
+        self._sig_count += 1
+
+    def flaky_count(self):
+        return self._flaky_count
+
+    def inc_flaky_count(self):
+        self._flaky_count += 1
 
 
 class TestResultWriter:
@@ -816,6 +1839,10 @@ class TestResultWriter:
         self.stat = stat
 
         self._save_tmo = False
+        self._triage = DiffTriage()
+        self._blacklist: Optional[BrickBlacklist] = None
+        self._support_sources: List[Path] = []
+        self._remover = AsyncRemover()
 
         self.mutant_dir_name = 'mutant'
 
@@ -847,11 +1874,25 @@ class TestResultWriter:
             # Write header
             f.write("diff_id,ref_id,mut_id,diff_type,"
                     "reference_return_code,reference_output_length,"
-                    "mutant_return_code,mutant_output_length\n")
+                    "mutant_return_code,mutant_output_length,signature_id,confirmation\n")
+        self._signature_file = self.diff_dir / 'signatures.csv'
 
     def set_save_timeouts(self, save: bool):
         self._save_tmo = save
 
+    def set_brick_blacklist(self, blacklist: BrickBlacklist):
+        # Blame compilation errors of mutants on code bricks, see BrickBlacklist
+        self._blacklist = blacklist
+
+    def set_keep_per_signature(self, keep: int):
+        # Save only the first keep differences of each signature in full, see DiffTriage
+        self._triage.keep_per_signature = keep
+
+    def set_support_sources(self, sources: List[Path]):
+        # Support sources shared by tests rather than put in their directories, see
+        # JavaGenerator.share_support_sources(), save them with tests to reproduce
+        self._support_sources = sources
+
     def append(self, test_res: Optional[TestResult]):
         # Check whether there are exceptions
         if test_res is None: return
@@ -869,16 +1910,20 @@ class TestResultWriter:
             script_check(mut_results is not None, "No mutant results are given")
             self._process_test_results(ref_id, ref_file, ref_result, mut_results)
 
-        # Reference is timeout, directly skip
-        elif isinstance(test_res, RefTmoTestResult): pass
+        # Reference is timeout or does not compile, directly skip
+        elif isinstance(test_res, RefTmoTestResult) or isinstance(test_res, RefCompErrTestResult): pass
 
         # Cannot have other type of results
         else: script_check(False, "Cannot reach here")
 
-        # Totally remove ref_dir to save space
-        ref_dir = ref_file.parent
-        res = Command.remove(ref_dir, is_dir=True, force=True)
-        script_check(res.retcode == 0, f"Failed to remove {ref_dir.absolute()}: {res.output}")
+        # Totally remove ref_dir to save space, in background as everything
+        # worth saving has already been copied or moved out of ref_dir
+        self._remover.remove(ref_file.parent)
+
+    def flush(self):
+        # Wait until the removals in background are finished
+        self._remover.flush()
+        self._triage.write_index(self._signature_file)
 
     def _process_test_results(self, ref_id: int, ref_file: Path,
                               ref_result: CommandResult,
@@ -896,6 +1941,9 @@ class TestResultWriter:
             elif isinstance(mut_result, MutantAllTmoError):
                 self._process_timeout_err(mut_id, ref_file, mut_result)
 
+            elif isinstance(mut_result, MutantDupError):
+                self.stat.inc_duplicate_count()  # Nothing worth saving
+
             elif isinstance(mut_result, MutantRunResult):
                 self._process_diff_result(mut_id, ref_id, ref_file, ref_result, mut_result)
 
@@ -910,9 +1958,14 @@ class TestResultWriter:
         # Copy all files except mutants and any dir from ref_dir to target_dir
         for f in ref_dir.iterdir():
             if f.name == MUTANTS_DIR_NAME: continue
+            if f.name == REFERENCE_OUTPUT_NAME: continue  # Saved to reference.txt instead
             if f.is_dir(): continue
-            res = Command.copy(f, target_dir)
+            # Files of ref_dir are never written and ref_dir is removed soon
+            res = Command.link(f, target_dir)
             script_check(res.retcode == 0, f'Cannot copy {f} to {ref_dir}: {res.output}')
+        for f in self._support_sources:
+            res = Command.link(f, target_dir)
+            script_check(res.retcode == 0, f'Cannot copy {f} to {target_dir}: {res.output}')
 
         mutant_dir = target_dir / self.mutant_dir_name
 
@@ -954,6 +2007,10 @@ class TestResultWriter:
         compf_dir = self.compf_dir / f'{compf_id}'
         print(f'> Ooops: {mut_id}/{compf_id}, '
               f'mutant compilation error, save to {compf_dir}, from {comp_err.mutant_dir}')
+        if self._blacklist is not None:
+            newly = self._blacklist.record(comp_err.mutant_file, comp_err.err_msg)
+            if len(newly) > 0:
+                print(f'> Ooops: {mut_id}/{compf_id}, blacklist code bricks {newly}')
 
         # Move directory of reference and mutant to compf_dir
         mutant_dir = self._remake_ref_dir_and_return_mutant_dir(ref_file, compf_dir, mutant=comp_err.mutant_dir)
@@ -998,9 +2055,11 @@ class TestResultWriter:
         output = 'prog-output'
 
         diff_type = not_found
-        if ref_result.retcode != mut_result.retcode:
+        if mut_result.retcode == DIVERGED_SPEC_CODE:
+            diff_type = output  # Its return code is unknown since it was killed early
+        elif ref_result.retcode != mut_result.retcode:
             diff_type = retcode
-        elif ref_result.output != mut_result.output:
+        elif ref_result.digest != mut_result.digest:
             diff_type = output
 
         if diff_type == not_found:
@@ -1011,16 +2070,40 @@ class TestResultWriter:
             # Mutant timed-out
             return self._process_mutanttmo_err(mut_id, ref_file, test_result)
 
+        # Re-runs of the mutant tell the difference does not reproduce, see DiffConfirmation
+        confirmation = test_result.confirmation
+        if confirmation is not None and confirmation.verdict == DiffConfirmation.FLAKY:
+            self.stat.inc_flaky_count()
+            print(f'> Ooops: {mut_id}, discard flaky difference {diff_type} ({confirmation}), '
+                  f'from {test_result.mutant_dir}')
+            return
+
         diff_id = self.stat.diff_count()
         self.stat.inc_diff_count()
 
+        # Read the whole output of the mutant before it's moved with the mutant's directory
+        ref_output = ref_result.digest.text()
+        mut_output = mut_result.digest.text()
+        sig_id, is_new, to_save = self._triage.classify(diff_id, ref_result.retcode, ref_output,
+                                                        mut_result.retcode, mut_output)
+
         # Record this difference in diff_file
+        sig_desc = f'signature {sig_id}' if sig_id is not None else 'unclustered, output truncated'
         print(f'> AHAHA: {mut_id}/{diff_id}: '
-              f'FOUND A DIFFERENCE {diff_type}, from {test_result.mutant_dir}')
+              f'FOUND A DIFFERENCE {diff_type} ({sig_desc}), from {test_result.mutant_dir}')
         with self._diff_file.open('a', encoding='utf-8') as out_file:
             out_file.write(f"{diff_id},{ref_id},{mut_id},{diff_type},"
-                           f"{ref_result.retcode},{len(ref_result.output)},"    # ref_result
-                           f"{mut_result.retcode},{len(mut_result.output)}\n")  # mut_result
+                           f"{ref_result.retcode},{ref_result.digest.length},"  # ref_result
+                           f"{mut_result.retcode},{mut_result.digest.length},"  # mut_result
+                           f"{sig_id if sig_id is not None else ''},"
+                           f"{confirmation.verdict if confirmation is not None else 'unconfirmed'}\n")
+        if is_new:
+            self.stat.inc_signature_count()
+        if not to_save:
+            print(f'> AHAHA: {diff_id}: signature {sig_id} has been found '
+                  f'{self._triage.count(sig_id)} times, not saved')
+            return
+        self._triage.write_index(self._signature_file)
 
         # Move directory of reference and mutant to diff_dir
         diff_dir = self.diff_dir / f'{diff_id}'
@@ -1030,10 +2113,18 @@ class TestResultWriter:
         # Save output data to separate file
         with (diff_dir / 'reference.txt').open('w') as f:
             f.write(f'Return code: {ref_result.retcode}\n')
-            f.write(ref_result.output)
+            f.write(ref_output)
         with (diff_dir / 'mutant.txt').open('w') as f:
-            f.write(f'Return code: {mut_result.retcode}\n')
-            f.write(mut_result.output)
+            if mut_result.retcode == DIVERGED_SPEC_CODE:
+                f.write(f'Return code: unknown, killed as it kept running after its output diverged, '
+                        f'the output is truncated\n')
+            else:
+                f.write(f'Return code: {mut_result.retcode}\n')
+            f.write(mut_output)
+        if (mutant_dir / MUTANT_OUTPUT_NAME).exists():
+            (mutant_dir / MUTANT_OUTPUT_NAME).unlink()  # Saved to mutant.txt instead
+        if confirmation is not None:
+            (diff_dir / 'confirmation.txt').write_text(f'{confirmation}\n')
 
     def _process_mutanttmo_err(self, mut_id: int, ref_file: Path, test_res: MutantRunResult):
         script_check(test_res.mutant_file is not None, "No mutation file is provided")
@@ -1064,18 +2155,38 @@ class JvmNoLongerAliveError(Exception):
 
 class AxExecutor(MprExecutor[Path, TestResult]):
 
-    def __init__(self, jvm: JavaVM, ax: Artemis, num_mutation: int, run_timeout: int):
+    def __init__(self, jvm: JavaVM, ax: Artemis, num_mutation: int, run_timeout: int,
+                 pipeline: Optional[dict] = None, adaptive_timeout: Optional[dict] = None,
+                 ref_cache: Optional[RefResultCache] = None, confirm: Optional[dict] = None):
         self.jvm = jvm
         self.ax = ax
         self.num_mutation = num_mutation
         self.run_timeout = run_timeout
+        self.pipeline = pipeline
+        self.adaptive_timeout = adaptive_timeout
+        self.ref_cache = ref_cache
+        self.confirm = confirm
 
     def __call__(self, ref_id: int, ref_file: Path) -> Optional[TestResult]:
-        return run_test(ref_file, self.jvm, self.ax, self.num_mutation, self.run_timeout)
+        return run_test(ref_file, self.jvm, self.ax, self.num_mutation, self.run_timeout,
+                        self.pipeline, self.adaptive_timeout, self.ref_cache, self.confirm)
 
     def should_early_exit(self, ref_id: int, ref_file: Path) -> bool:
         return not self.jvm.is_alive()
 
+    def count_timeouts(self, result: Optional[TestResult]) -> Tuple[int, int]:
+        if isinstance(result, RefTmoTestResult):
+            return 1, 1
+        if not isinstance(result, NormalTestResult):
+            return 0, 0
+        timeouts, runs = 0, 1
+        for mut_res in result.mut_results:
+            if isinstance(mut_res, MutantAllTmoError):
+                timeouts, runs = timeouts + 1, runs + 1
+            elif isinstance(mut_res, MutantRunResult):
+                timeouts, runs = timeouts + (mut_res.retcode == TIMEOUT_SPEC_CODE), runs + 1
+        return timeouts, runs
+
 
 class AxHandler(MprHandler[TestResult]):
 
@@ -1085,6 +2196,10 @@ class AxHandler(MprHandler[TestResult]):
     def __call__(self, test_res: Optional[TestResult]):
         self.writer.append(test_res)
 
+    def summary(self) -> WriterStat:
+        self.writer.flush()
+        return self.writer.stat
+
 
 def main(conf_path: Path):
     script_check(conf_path.exists(), f'Conf does not exist: {conf_path}')
@@ -1095,35 +2210,50 @@ def main(conf_path: Path):
     random.seed(conf['rand_seed'])
 
     # Create required components from configs
-    java = create_java_from_conf(conf['java'])
-    jvm = create_jvm_from_conf(conf['jvm'], java)
+    java = create_java_from_conf(conf['java'], conf['artemis']['jar'])
+    jvm = create_jvm_from_conf(conf['jvm'], java, conf['artemis']['jar'],
+                               create_sandbox_from_conf(conf['sandbox']))
     java_gen = create_generator_from_conf(conf['generator'])
     artemis = create_artemis_from_conf(conf['artemis'], java)
 
-    # Create a manager for managing process-shared objects
-    manager = Manager()
-
-    # Create a writer for writing result in a single process
-    stat = ProcSharedWriterStat(manager)
-    writer = TestResultWriter(conf['out_dir'], stat)
+    # Create a writer for writing result in a single process, the handler's
+    writer = TestResultWriter(conf['out_dir'], LocalWriterStat())
     writer.set_save_timeouts(conf['save_timeouts'])
+    writer.set_keep_per_signature(conf['keep_per_signature'])
+    brick_blacklist = create_brick_blacklist_from_conf(conf['artemis'])
+    if brick_blacklist is not None:
+        writer.set_brick_blacklist(brick_blacklist)
+
+    share_support_classes(java_gen, jvm, artemis, writer)
+
+    # Identify the jvm after it's set up, as its settings (e.g., classpath) change results
+    ref_cache = RefResultCache(conf['ref_cache'], jvm.identity()) if conf['ref_cache'] is not None else None
 
     num_proc = conf['num_proc']
     num_mutation = conf['num_mutation']
     prog_timeout = conf['prog_timeout']
 
     mprunner = MultiProcRunner(num_proc, java_gen,
-                               AxExecutor(jvm, artemis, num_mutation, prog_timeout),
-                               AxHandler(writer))
+                               AxExecutor(jvm, artemis, num_mutation, prog_timeout,
+                                          conf['pipeline'], conf['adaptive_timeout'], ref_cache,
+                                          conf['confirm']),
+                               AxHandler(writer),
+                               autoscaler=create_autoscaler_from_conf(conf['autoscale']))
+
+    _, elapsed = exec_time(mprunner.run)
 
-    _, elapsed = exec_time(mprunner.run, manager)
+    # The handler counted in its own process and sent the counts back
+    stat: Optional[WriterStat] = mprunner.handler_summary()
 
     # TODO Figure out how to save the data if stopped abnormally
-    if mprunner.is_stopped_normally():
+    if mprunner.is_stopped_normally() and stat is not None:
         print(f'Found {stat.diff_count()}/{stat.mut_count()} differences in {format_time(elapsed)}')
+        print(f'- {stat.signature_count()} distinct signatures of differences')
         print(f'- {stat.ref_count()} generated references')
         print(f'- {stat.mut_count()} generated mutants')
         print(f'- {stat.mutation_failure_count()} mutation failures')
+        print(f'- {stat.duplicate_count()} duplicated mutants skipped')
+        print(f'- {stat.flaky_count()} flaky differences discarded')
         print(f'- {stat.compilation_failure_count()} mutant compilation failures')
         print(f'- {stat.mutant_timeout_count()} mutant timeouts ({prog_timeout}s)')
         print(f'- {stat.timeout_count()} all timeouts ({prog_timeout}s)')
@@ -89,7 +89,7 @@ def main(conf_path: Path):
     conf = read_conf(conf_path)
 
     random.seed(conf['rand_seed'])
-    java = create_java_from_conf(conf['java'])
+    java = create_java_from_conf(conf['java'], conf['artemis']['jar'])
     java_gen = create_generator_from_conf(conf['generator'])
     ax = create_artemis_from_conf(conf['artemis'], java)
 
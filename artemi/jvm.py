@@ -20,14 +20,23 @@
 # OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 # SOFTWARE.
 
+import hashlib
+import os
+import select
+import shlex
+import shutil
+import signal
 import tempfile
+import threading
+import time
 from abc import abstractmethod
 from pathlib import Path
-from subprocess import TimeoutExpired
-from typing import Optional, List
+from subprocess import Popen, TimeoutExpired, PIPE, DEVNULL, STDOUT
+from typing import Optional, List, Dict, Tuple
 from uuid import uuid4 as uuid
 
-from utils import Command, CommandResult, script_check
+from utils import Command, CommandResult, OutputMonitor, Sandbox, script_check, safe_killpg, \
+    link_or_copy, communicate_monitored
 
 
 #
@@ -53,10 +62,20 @@ class JavaVM:
 
     def __init__(self):
         self.default_opts = []
+        self.sandbox: Optional[Sandbox] = None
+        self.early_kill = True
 
     def set_default_opts(self, opts: List[str]):
         self.default_opts = opts
 
+    def set_early_kill(self, early_kill: bool):
+        # Whether to stop programs whose outputs diverged and do not exit soon, see OutputMonitor
+        self.early_kill = early_kill
+
+    def set_sandbox(self, sandbox: Optional[Sandbox]):
+        # Confine programs run by new jvms, see Sandbox; jvms that cannot confine them ignore it
+        self.sandbox = sandbox
+
     @abstractmethod
     def compile(self,
                 java_file: Path,
@@ -73,6 +92,41 @@ class JavaVM:
             timeout: int = 10) -> CommandResult:
         pass
 
+    def run_reference(self,
+                      compile_result: JvmCompileResult,
+                      main_args: str = '',
+                      timeout: int = 10) -> CommandResult:
+        # References are expected outputs and only have to be run correctly, not necessarily by
+        # a new jvm; jvms having a faster way to run them override this
+        return self.run(compile_result, main_args=main_args, timeout=timeout)
+
+    def run_monitored(self,
+                      compile_result: JvmCompileResult,
+                      monitor: OutputMonitor,
+                      main_args: str = '',
+                      timeout: int = 10) -> CommandResult:
+        # Run the program by a new jvm like run(), and stop it once monitor finds it doomed to
+        # differ (see monitor.verdict) or hanging (by TimeoutExpired); jvms that cannot watch
+        # outputs of running programs just run them to the end
+        return self.run(compile_result, main_args=main_args, timeout=timeout)
+
+    def run_batched(self,
+                    compile_result: JvmCompileResult,
+                    main_args: str = '',
+                    timeout: int = 10) -> CommandResult:
+        # Run the program by a jvm that may have run other programs before, sharing its JIT
+        # state; results differing from expected ones should be confirmed by run()
+        return self.run(compile_result, main_args=main_args, timeout=timeout)
+
+    def is_batching(self) -> bool:
+        # Whether run_batched() does not always use a new jvm
+        return False
+
+    def identity(self) -> str:
+        # What tells programs may run differently under this jvm than under others, e.g., for
+        # caching their results; jvms knowing their builds and settings override this
+        return str(self)
+
     @abstractmethod
     def is_alive(self) -> bool:
         pass
@@ -82,6 +136,416 @@ class JavaVM:
         pass
 
 
+#
+# Long-lived Java services
+#
+
+class JvmService:
+    """
+    JvmService is the client of a long-lived Java service of Artemis (io.artemis.svc, packed in
+    artemis.jar), which talks with us via its stdin and stdout and is ready once it writes READY.
+    The service is started lazily, one per process using it, and is restarted if it dies or times
+    out. Subclasses return None if the service is unavailable (e.g., the java is older than Java
+    11), and callers should fall back to commands.
+    """
+
+    _MAIN_CLASS = None
+    _READY = 'READY'
+    _UNSUPPORTED = 'UNSUPPORTED'
+    _STARTUP_TIMEOUT = 60  # seconds
+    _MAX_START_FAILURES = 3
+
+    def __init__(self, java: Path, jar: Path, opts: Optional[List[str]] = None,
+                 sandbox: Optional[Sandbox] = None):
+        self.java = java
+        self.jar = jar
+        self.opts = opts if opts is not None else []
+        self.sandbox = sandbox  # only pins the service's cpus, it's shared by many requests
+        self._proc: Optional[Popen] = None
+        self._pid = None  # the process owning _proc
+        self._buf = b''
+        self._start_failures = 0
+        self._lock = threading.Lock()  # one request at a time, subclasses should hold it
+
+    def __getstate__(self):
+        # The service is per process, never share it with others (e.g., pickled to pool workers)
+        state = self.__dict__.copy()
+        state['_proc'] = None
+        state['_pid'] = None
+        state['_buf'] = b''
+        del state['_lock']
+        return state
+
+    def __setstate__(self, state):
+        self.__dict__.update(state)
+        self._lock = threading.Lock()
+
+    def close(self):
+        if self._proc is not None:
+            if self._pid == os.getpid():
+                safe_killpg(self._proc.pid, signal.SIGKILL)
+                self._proc.wait()
+            self._proc = None
+            self._pid = None
+            self._buf = b''
+
+    def _ensure_started(self) -> bool:
+        if self._proc is not None and self._pid == os.getpid() and self._proc.poll() is None:
+            return True
+        self.close()
+        if self._start_failures >= self._MAX_START_FAILURES:
+            return False
+        try:
+            preexec_fn = self.sandbox.preexec_fn(None, None) if self.sandbox is not None else None
+            self._proc = Popen([str(self.java)] + self.opts + ['-cp', str(self.jar), self._MAIN_CLASS],
+                               stdin=PIPE, stdout=PIPE, stderr=DEVNULL, start_new_session=True,
+                               preexec_fn=preexec_fn)
+            self._pid = os.getpid()
+            ready = self._read_line(time.time() + self._STARTUP_TIMEOUT)
+        except (TimeoutExpired, OSError, EOFError):
+            ready = None
+        if ready != self._READY:
+            self.close()
+            self._start_failures += 1
+            if ready == self._UNSUPPORTED:
+                self._start_failures = self._MAX_START_FAILURES  # Never going to work
+            return False
+        return True
+
+    def _write_line(self, line: str):
+        self._proc.stdin.write(f'{line}\n'.encode('utf-8'))
+        self._proc.stdin.flush()
+
+    def _read_line(self, deadline: float) -> str:
+        fd = self._proc.stdout.fileno()
+        while b'\n' not in self._buf:
+            self._fill_buf(fd, deadline)
+        line, self._buf = self._buf.split(b'\n', 1)
+        return str(line, encoding='utf-8')
+
+    def _read_bytes(self, count: int, deadline: float) -> bytes:
+        fd = self._proc.stdout.fileno()
+        while len(self._buf) < count:
+            self._fill_buf(fd, deadline)
+        data, self._buf = self._buf[:count], self._buf[count:]
+        return data
+
+    def _fill_buf(self, fd: int, deadline: float):
+        remaining = deadline - time.time()
+        if remaining <= 0:
+            raise TimeoutExpired(self._MAIN_CLASS, 0)
+        readable, _, _ = select.select([fd], [], [], remaining)
+        if not readable:
+            return
+        chunk = os.read(fd, 65536)
+        if len(chunk) == 0:
+            raise EOFError(f'{self._MAIN_CLASS} exited')
+        self._buf += chunk
+
+
+class JavacService(JvmService):
+    """
+    JavacService keeps javac warm (io.artemis.svc.CompileService) such that we don't pay the
+    startup of javac for every compilation.
+    """
+
+    _MAIN_CLASS = 'io.artemis.svc.CompileService'
+
+    def compile(self,
+                java_files: List[Path],
+                classpath: List[str],
+                out_dir: Path,
+                timeout: int = 10) -> Optional[CommandResult]:
+        with self._lock:
+            if not self._ensure_started():
+                return None
+            request = '\t'.join(['COMPILE', str(out_dir), ':'.join(classpath)] +
+                                 [str(f) for f in java_files])
+            deadline = time.time() + timeout
+            try:
+                self._write_line(request)
+                status, count = self._read_line(deadline).split(' ')
+                output = [self._read_line(deadline) for _ in range(int(count))]
+            except TimeoutExpired:
+                self.close()
+                raise TimeoutExpired(f'{self._MAIN_CLASS} {request}', timeout)
+            except (OSError, ValueError, EOFError):
+                self.close()
+                return None  # The service died, let's fall back for this time and restart next time
+            return CommandResult(0 if status == 'OK' else 1, '\n'.join(output))
+
+
+class RunService(JvmService):
+    """
+    RunService runs programs one after another in a long-lived JVM (io.artemis.svc.RunService),
+    each in its own class loader, such that we don't pay the startup of a JVM for every program.
+    The JVM is restarted every max_runs programs (0 for never), and a timed out program kills the
+    JVM, and the next program restarts it.
+    """
+
+    _MAIN_CLASS = 'io.artemis.svc.RunService'
+
+    def __init__(self, java: Path, jar: Path, opts: Optional[List[str]] = None, max_runs: int = 0,
+                 sandbox: Optional[Sandbox] = None):
+        super(RunService, self).__init__(java, jar, opts, sandbox)
+        self.max_runs = max_runs
+        self._runs = 0  # programs run by the current JVM
+
+    def close(self):
+        super(RunService, self).close()
+        self._runs = 0
+
+    def run(self,
+            class_dir: Path,
+            clazz: str,
+            main_args: str = '',
+            timeout: int = 10,
+            classpath: Optional[List[str]] = None) -> Optional[CommandResult]:
+        with self._lock:
+            if self.max_runs != 0 and self._runs >= self.max_runs:
+                self.close()
+            if not self._ensure_started():
+                return None
+            self._runs += 1
+            classpath = ':'.join([str(class_dir)] + (classpath or []))
+            request = '\t'.join(['RUN', classpath, clazz] + shlex.split(main_args))
+            deadline = time.time() + timeout
+            try:
+                self._write_line(request)
+                status, retcode, count = self._read_line(deadline).split(' ')
+                output = self._read_bytes(int(count), deadline)
+            except TimeoutExpired:
+                self.close()
+                raise TimeoutExpired(f'{self._MAIN_CLASS} {request}', timeout)
+            except (OSError, ValueError, EOFError):
+                self.close()
+                return None  # The service died, let's fall back for this time and restart next time
+            if status != 'OK':
+                return None  # The service cannot run it, e.g., cannot load the main class
+            return CommandResult(int(retcode), str(output, encoding='utf-8').strip())
+
+
+class ReduceService(JvmService):
+    """
+    ReduceService keeps the Spoon model of a program being reduced (io.artemis.svc.ReduceService),
+    lists the candidates which can be removed from it, and prints its variants with any subset of
+    the candidates removed, such that the reducer does not pay parsing the program every variant.
+    """
+
+    _MAIN_CLASS = 'io.artemis.svc.ReduceService'
+
+    def load(self,
+             java_file: Path,
+             bricks_file: Optional[Path] = None,
+             timeout: int = 60) -> Optional[List[Tuple[int, str, int, int]]]:
+        # Returns candidates of (id, kind, depth, line), or None if the program cannot be loaded
+        fields = ['LOAD', str(java_file)] + ([str(bricks_file)] if bricks_file is not None else [])
+        output = self._request('\t'.join(fields), timeout)
+        if output is None:
+            return None
+        candidates = []
+        for line in output:
+            cid, kind, depth, lineno = line.split('\t')
+            candidates.append((int(cid), kind, int(depth), int(lineno)))
+        return candidates
+
+    def print_variant(self, out_file: Path, removed: List[int], timeout: int = 60) -> bool:
+        request = '\t'.join(['PRINT', str(out_file)] +
+                            ([','.join(str(i) for i in removed)] if len(removed) != 0 else []))
+        return self._request(request, timeout) is not None
+
+    def _request(self, request: str, timeout: int) -> Optional[List[str]]:
+        with self._lock:
+            if not self._ensure_started():
+                return None
+            deadline = time.time() + timeout
+            try:
+                self._write_line(request)
+                status, count = self._read_line(deadline).split(' ')
+                output = [self._read_line(deadline) for _ in range(int(count))]
+            except (TimeoutExpired, OSError, ValueError, EOFError):
+                self.close()  # The loaded program is lost with the service, callers should reload
+                return None
+            return output if status == 'OK' else None
+
+
+#
+# Pre-booted JVMs
+#
+
+class JvmPool:
+    """
+    JvmPool keeps JVMs pre-booted such that running a program does not pay the JVM's startup.
+    Each pooled JVM runs launcher/AxLauncher.java and blocks until it's given a program, runs the
+    program exactly once (thus with a clean JIT), and exits. Pooled JVMs are keyed by their
+    options and extra classpath (e.g., shared support classes), and once a JVM is taken, another
+    one is booted in background to replace it, which hides the startup behind the running
+    program. Like JavacService, a pool is per process.
+    Running returns None if the pool is unavailable, and callers should fall back to commands.
+    """
+
+    LAUNCHER_SOURCE = Path(__file__).parent.absolute() / 'launcher' / 'AxLauncher.java'
+    _LAUNCHER_CLASS = 'AxLauncher'
+
+    class _Jvm:
+        def __init__(self, proc: Popen, slot_dir: Path):
+            self.proc = proc
+            self.slot_dir = slot_dir  # empty until running a program, on the jvm's classpath
+
+    def __init__(self, java: Path, javac: Path, size: int):
+        self.java = java
+        self.javac = javac
+        self.size = size
+        self._idle: Dict[Tuple[str, str], List[JvmPool._Jvm]] = {}
+        self._pid = None  # the process owning _idle
+        self._slots_root: Optional[Path] = None
+        self._launcher_dir: Optional[Path] = None
+        self._launcher_broken = False
+        self._lock = threading.Lock()  # guards the idle jvms
+
+    def __getstate__(self):
+        # Pooled jvms are per process, never share them with others
+        state = self.__dict__.copy()
+        state['_idle'] = {}
+        state['_pid'] = None
+        state['_slots_root'] = None
+        del state['_lock']
+        return state
+
+    def __setstate__(self, state):
+        self.__dict__.update(state)
+        self._lock = threading.Lock()
+
+    def run(self,
+            class_dir: Path,
+            clazz: str,
+            main_args: str = '',
+            jvm_opts: str = '',
+            timeout: int = 10,
+            classpath: Optional[List[str]] = None,
+            monitor: Optional[OutputMonitor] = None,
+            sandbox: Optional[Sandbox] = None) -> Optional[CommandResult]:
+        key = (jvm_opts, ':'.join(classpath or []))
+        with self._lock:
+            if not self._ensure_launcher():
+                return None
+            jvm = self._acquire(key, sandbox)
+            self._refill(key, sandbox)
+        cgroup = sandbox.open_cgroup() if sandbox is not None else None
+        oom_killed = False
+        try:
+            # Only top-level classes are loadable, as if running "java -cp class_dir clazz"
+            for f in class_dir.iterdir():
+                if f.suffix == '.class':
+                    link_or_copy(f, jvm.slot_dir / f.name)
+            program = '\n'.join([clazz] + shlex.split(main_args)) + '\n'
+            startup_cpu_time = 0.0
+            wall_timeout = timeout
+            if sandbox is not None:
+                try:
+                    startup_cpu_time = sandbox.confine_running(jvm.proc.pid, timeout, cgroup)
+                except OSError:
+                    pass  # Died when idle, let communicating with it tell
+                wall_timeout = sandbox.wall_timeout(timeout)
+            start = time.time()
+            output, cpu_time = communicate_monitored(jvm.proc, program.encode('utf-8'),
+                                                     wall_timeout, monitor)
+            wall_time = time.time() - start
+            # Excluding the jvm's startup before the program
+            cpu_time = max(0.0, cpu_time - startup_cpu_time)
+            if sandbox is not None:
+                sandbox.check_timeout(jvm.proc, cpu_time, timeout)
+        finally:
+            shutil.rmtree(jvm.slot_dir, ignore_errors=True)
+            if cgroup is not None:
+                oom_killed = Sandbox.close_cgroup(cgroup)
+        output = str(output, encoding='utf-8', errors='replace').strip()
+        if oom_killed:
+            output += f'\nKilled by the sandbox: exceeded memory.max={sandbox.memory_max}'
+        return CommandResult(jvm.proc.returncode, output, cpu_time, wall_time)
+
+    def _acquire(self, key: Tuple[str, str], sandbox: Optional[Sandbox]) -> 'JvmPool._Jvm':
+        idle = self._idle.setdefault(key, [])
+        while len(idle) != 0:
+            jvm = idle.pop(0)
+            if jvm.proc.poll() is None:
+                return jvm
+            shutil.rmtree(jvm.slot_dir, ignore_errors=True)  # Died when idle, e.g., killed
+        return self._spawn(key, sandbox)
+
+    def _refill(self, key: Tuple[str, str], sandbox: Optional[Sandbox]):
+        idle = self._idle.setdefault(key, [])
+        while len(idle) < self.size:
+            idle.append(self._spawn(key, sandbox))
+
+    def _spawn(self, key: Tuple[str, str], sandbox: Optional[Sandbox]) -> 'JvmPool._Jvm':
+        jvm_opts, classpath = key
+        slot_dir = Path(tempfile.mkdtemp(prefix='slot-', dir=self._slots_root))
+        classpath = f'{self._launcher_dir}:{slot_dir}' + (f':{classpath}' if classpath else '')
+        # Pin its cpus when spawning it, and limit its cpu time when giving it a program
+        preexec_fn = sandbox.preexec_fn(None, None) if sandbox is not None else None
+        proc = Popen([str(self.java)] + shlex.split(jvm_opts) +
+                     ['-cp', classpath, self._LAUNCHER_CLASS],
+                     stdin=PIPE, stdout=PIPE, stderr=STDOUT, start_new_session=True,
+                     preexec_fn=preexec_fn)
+        return JvmPool._Jvm(proc, slot_dir)
+
+    def _ensure_launcher(self) -> bool:
+        if self._pid != os.getpid():
+            self._idle = {}
+            self._pid = os.getpid()
+            self._slots_root = Path(tempfile.mkdtemp(prefix='artemi-jvm-pool-'))
+        if self._launcher_dir is not None:
+            return True
+        if self._launcher_broken:
+            return False
+        # Compile the launcher by the javac of our jvm once, shared by all processes
+        launcher_dir, err_msg = compile_once(self.javac, [self.LAUNCHER_SOURCE], 'artemi-launcher')
+        if launcher_dir is None:
+            print(f'Failed to compile {self.LAUNCHER_SOURCE}, pre-booting jvms is disabled: {err_msg}')
+            self._launcher_broken = True
+            return False
+        self._launcher_dir = launcher_dir
+        return True
+
+
+def compile_once(javac: Path, sources: List[Path], prefix: str) -> Tuple[Optional[Path], str]:
+    # Compile sources by javac into a directory named by the digest of javac and the sources, such
+    # that all processes (and campaigns) share it; return the directory, or None and the error
+    digest = hashlib.sha1(bytes(str(javac), encoding='utf-8'))
+    for source in sources:
+        digest.update(bytes(source.name, encoding='utf-8'))
+        digest.update(source.read_bytes())
+    class_dir = Path(tempfile.gettempdir()) / f'{prefix}-{digest.hexdigest()[:16]}'
+    if class_dir.exists():
+        return class_dir, ''
+    build_dir = Path(tempfile.mkdtemp(prefix=f'{prefix}-'))
+    res = Command.run(f'{javac} -d {build_dir} ' + ' '.join(str(s.absolute()) for s in sources), timeout=60)
+    if res.retcode != 0:
+        shutil.rmtree(build_dir, ignore_errors=True)
+        return None, res.output
+    try:
+        build_dir.rename(class_dir)  # Atomically publish it as a whole
+    except OSError:
+        shutil.rmtree(build_dir, ignore_errors=True)  # Another process has done this
+    return class_dir, ''
+
+
+def java_feature_version(java_home: Path) -> Optional[int]:
+    # Read JAVA_VERSION (e.g., "17.0.2" or "1.8.0_292") from the JDK's release file
+    release = java_home / 'release'
+    if not release.exists():
+        return None
+    for line in release.read_text(encoding='utf-8', errors='replace').splitlines():
+        if line.startswith('JAVA_VERSION='):
+            parts = line.split('=', 1)[1].strip('"').split('.')
+            try:
+                return int(parts[1]) if parts[0] == '1' else int(parts[0])
+            except (IndexError, ValueError):
+                return None
+    return None
+
+
 #
 # HotSpot toolchain
 #
@@ -100,10 +564,55 @@ class HotSpot(JavaVM):
         script_check(self.javac.exists(), f'Command `javac` does not exist in JAVA_HOME: {java_home}')
         script_check(self.java.exists(), f'Command `java` does not exist in JAVA_HOME: {java_home}')
         self.classpath = []
+        self.support_classpath: List[str] = []
+        self.javac_service: Optional[JavacService] = None
+        self.jvm_pool: Optional[JvmPool] = None
+        self.ref_oracle: Optional[RunService] = None
+        self.mutant_batch: Optional[RunService] = None
 
     def set_default_classpath(self, classpath: List[str]):
         self.classpath = classpath
 
+    def enable_javac_service(self, artemis_jar: Path):
+        # Compile using a long-lived javac of this JDK, see JavacService
+        self.javac_service = JavacService(self.java, artemis_jar)
+
+    def enable_support_classes(self, sources: List[Path]) -> Optional[Path]:
+        # Compile classes that tests depend on (e.g., FuzzerUtils.java) once by our javac, and put
+        # them on the classpath to compile and run every test; None if they cannot be compiled
+        support_dir, err_msg = compile_once(self.javac, sources, 'artemi-support')
+        if support_dir is None:
+            print(f'Failed to precompile support classes {[s.name for s in sources]}: {err_msg}')
+            return None
+        self.support_classpath = [str(support_dir)]
+        return support_dir
+
+    def enable_jvm_pool(self, size: int):
+        # Run programs by pre-booted jvms, see JvmPool; size 0 disables the pool
+        self.jvm_pool = JvmPool(self.java, self.javac, size) if size > 0 else None
+
+    def enable_ref_oracle(self, artemis_jar: Path):
+        # Run references by a long-lived interpreter-only jvm, see RunService; must be enabled
+        # after default options and the sandbox are set as the oracle runs with them
+        self.ref_oracle = RunService(self.java, artemis_jar, self._run_service_opts(['-Xint']),
+                                     sandbox=self.sandbox)
+
+    def enable_mutant_batch(self, artemis_jar: Path, size: int):
+        # Run up to size programs by run_batched() in a jvm, see RunService; size 0 disables it;
+        # must be enabled after default options and the sandbox are set as the jvm runs with them
+        if size > 0:
+            self.mutant_batch = RunService(self.java, artemis_jar, self._run_service_opts([]), size,
+                                           self.sandbox)
+        else:
+            self.mutant_batch = None
+
+    def _run_service_opts(self, opts: List[str]) -> List[str]:
+        opts = opts + shlex.split(' '.join(self.default_opts))
+        version = java_feature_version(self.home)
+        if version is not None and version >= 12:
+            opts.append('-Djava.security.manager=allow')  # To trap System.exit()
+        return opts
+
     def compile(self,
                 java_file: Path,
                 classpath: Optional[List[str]] = None,
@@ -113,13 +622,17 @@ class HotSpot(JavaVM):
             classpath.append(str(class_dir))
         else:
             classpath = [str(class_dir)]
-        classpath = classpath + self.classpath
+        classpath = classpath + self.classpath + self.support_classpath
         cp_opt = ":".join(classpath)
         java_file_path = java_file.absolute()
-        result = Command.run(f'{self.javac}'
-                             f' -cp {cp_opt}'
-                             f' {java_file_path}',
-                             timeout=timeout)
+        result = None
+        if self.javac_service is not None:
+            result = self.javac_service.compile([java_file_path], classpath, class_dir, timeout=timeout)
+        if result is None:
+            result = Command.run(f'{self.javac}'
+                                 f' -cp {cp_opt}'
+                                 f' {java_file_path}',
+                                 timeout=timeout)
         if result.retcode != 0:
             return HotSpotCompileResult(None, None, err_msg=result.output)
         java_class = java_file.stem
@@ -130,8 +643,9 @@ class HotSpot(JavaVM):
             main_args: str = '',
             do_force: int = JavaVM.FORCED_NONE,
             jvm_opts: str = '',
-            timeout: int = 10) -> CommandResult:
-        hs_opts = f'-cp {compile_result.class_dir}'
+            timeout: int = 10,
+            monitor: Optional[OutputMonitor] = None) -> CommandResult:
+        hs_opts = ''
         if do_force == JavaVM.FORCED_INT:
             hs_opts += ' -Xint'
         elif do_force == JavaVM.FORCED_JIT:
@@ -158,11 +672,86 @@ class HotSpot(JavaVM):
                     .replace('-XX:+BackgroundCompilation', '')    \
                     .replace('-XX:+ClipInlining', '')
 
-        return Command.run(f'{self.java}'
-                           f' {hs_opts}'
-                           f' {compile_result.clazz}'
-                           f' {main_args}',
-                           timeout=timeout)
+        return self._exec(compile_result, main_args, hs_opts, timeout, monitor)
+
+    def run_monitored(self,
+                      compile_result: JvmCompileResult,
+                      monitor: OutputMonitor,
+                      main_args: str = '',
+                      timeout: int = 10) -> CommandResult:
+        return self.run(compile_result, main_args=main_args, timeout=timeout, monitor=monitor)
+
+    def run_reference(self,
+                      compile_result: JvmCompileResult,
+                      main_args: str = '',
+                      timeout: int = 10) -> CommandResult:
+        if self.ref_oracle is not None:
+            result = self.ref_oracle.run(compile_result.class_dir,
+                                         compile_result.clazz,
+                                         main_args,
+                                         timeout=timeout,
+                                         classpath=self.support_classpath)
+            if result is not None:
+                return result
+        return super(HotSpot, self).run_reference(compile_result, main_args, timeout)
+
+    def run_batched(self,
+                    compile_result: JvmCompileResult,
+                    main_args: str = '',
+                    timeout: int = 10) -> CommandResult:
+        if self.mutant_batch is not None:
+            result = self.mutant_batch.run(compile_result.class_dir,
+                                           compile_result.clazz,
+                                           main_args,
+                                           timeout=timeout,
+                                           classpath=self.support_classpath)
+            if result is not None:
+                return result
+        return super(HotSpot, self).run_batched(compile_result, main_args, timeout)
+
+    def is_batching(self) -> bool:
+        return self.mutant_batch is not None
+
+    def identity(self) -> str:
+        # The jvm's build, which changes when it's rebuilt in the same home, its settings, and how
+        # it runs references, as references run by the interpreter-only oracle take other times
+        # than by jit-enabled jvms (which derive_mutant_timeout() relies on)
+        version = Command.run(f'{self.java} -Xinternalversion')
+        if version.retcode != 0:
+            version = Command.run(f'{self.java} -version')  # e.g., not supported by openj9
+        if self.ref_oracle is not None:
+            ref_mode = 'references: ref-oracle (-Xint)'
+        elif self.jvm_pool is not None:
+            ref_mode = 'references: jvm-pool'
+        else:
+            ref_mode = 'references: new-jvm'
+        return '\n'.join([str(self), version.output, ' '.join(self.default_opts), ref_mode] +
+                         self.classpath + self.support_classpath)
+
+    def _exec(self,
+              compile_result: JvmCompileResult,
+              main_args: str,
+              opts: str,
+              timeout: int,
+              monitor: Optional[OutputMonitor] = None) -> CommandResult:
+        if self.jvm_pool is not None:
+            result = self.jvm_pool.run(compile_result.class_dir,
+                                       compile_result.clazz,
+                                       main_args,
+                                       opts,
+                                       timeout=timeout,
+                                       classpath=self.support_classpath,
+                                       monitor=monitor,
+                                       sandbox=self.sandbox)
+            if result is not None:
+                return result
+        cp_opt = ':'.join([str(compile_result.class_dir)] + self.support_classpath)
+        cmd = (f'{self.java}'
+               f' -cp {cp_opt}'
+               f' {opts}'
+               f' {compile_result.clazz}'
+               f' {main_args}')
+        return Command.run_measured(cmd, timeout=timeout, monitor=monitor, sandbox=self.sandbox)
 
     def jar_run(self,
                 jar_path: Path,
@@ -449,8 +1038,9 @@ class OpenJ9(HotSpot):
             main_args: str = '',
             do_force: int = JavaVM.FORCED_NONE,
             jvm_opts: str = '',
-            timeout: int = 10) -> CommandResult:
-        j9_opts = f'-cp {compile_result.class_dir}'
+            timeout: int = 10,
+            monitor: Optional[OutputMonitor] = None) -> CommandResult:
+        j9_opts = ''
         if do_force == JavaVM.FORCED_INT:
             j9_opts += ' -Xint'
         elif do_force == JavaVM.FORCED_JIT:
@@ -462,11 +1052,7 @@ class OpenJ9(HotSpot):
         j9_opts += f' {jvm_opts}'
         j9_opts += f' {" ".join(self.default_opts)}'
 
-        return Command.run(f'{self.java}'
-                           f' {j9_opts}'
-                           f' {compile_result.clazz}'
-                           f' {main_args}',
-                           timeout=timeout)
+        return self._exec(compile_result, main_args, j9_opts, timeout, monitor)
 
     def is_alive(self) -> bool:
         return True
@@ -485,7 +1071,8 @@ class Graal(HotSpot):
             main_args: str = '',
             do_force: int = JavaVM.FORCED_NONE,
             jvm_opts: str = '',
-            timeout: int = 10) -> CommandResult:
+            timeout: int = 10,
+            monitor: Optional[OutputMonitor] = None) -> CommandResult:
         # Graal's forced JIT is a bit slow
         if do_force == JavaVM.FORCED_JIT:
             timeout = timeout * 2
@@ -494,7 +1081,8 @@ class Graal(HotSpot):
             main_args,
             do_force,
             jvm_opts,
-            timeout)
+            timeout,
+            monitor)
 
     def is_alive(self) -> bool:
         return True
@@ -0,0 +1,103 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * AxLauncher lets artemi boot a JVM before knowing which program it is going to run. The JVM is
+ * started as "java [options] -cp LAUNCHER_DIR:SLOT_DIR AxLauncher" where SLOT_DIR is an empty
+ * directory, and blocks on stdin. When a program is to run, artemi puts the program's classes into
+ * SLOT_DIR and writes to stdin the main class in the first line, and an argument per line after
+ * it, and closes stdin. AxLauncher then runs the main class exactly once, as if the JVM is started
+ * as "java [options] -cp ... MAIN_CLASS ARGS": the main class is loaded by the system class loader
+ * from SLOT_DIR, and an uncaught exception is reported by the JVM itself with AxLauncher's frames
+ * removed from the stack trace.
+ *
+ * AxLauncher should be compiled by the javac of the tested JVM and should never depend on
+ * anything newer than Java 8. It never prints anything by itself.
+ */
+public class AxLauncher {
+
+    public static void main(String[] launcherArgs) throws Throwable {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String mainClass = in.readLine();
+        if (mainClass == null || mainClass.isEmpty()) {
+            return; // The JVM is not needed anymore, e.g., artemi exited
+        }
+        List<String> args = new ArrayList<>();
+        String arg;
+        while ((arg = in.readLine()) != null) {
+            args.add(arg);
+        }
+
+        Method main = Class.forName(mainClass, false, ClassLoader.getSystemClassLoader())
+                .getMethod("main", String[].class);
+        try {
+            main.invoke(null, (Object) args.toArray(new String[0]));
+        } catch (InvocationTargetException e) {
+            throw trim(e.getCause(), newVisitedSet());
+        } catch (ExceptionInInitializerError e) {
+            throw trim(e, newVisitedSet());
+        }
+    }
+
+    // Remove frames of AxLauncher and the reflective call from the bottom of the stack traces
+    private static Throwable trim(Throwable t, Set<Throwable> visited) {
+        if (t == null || !visited.add(t)) {
+            return t;
+        }
+        StackTraceElement[] frames = t.getStackTrace();
+        int end = frames.length;
+        while (end > 0 && isLauncherFrame(frames[end - 1])) {
+            end--;
+        }
+        if (end != frames.length) {
+            t.setStackTrace(Arrays.copyOf(frames, end));
+        }
+        trim(t.getCause(), visited);
+        for (Throwable suppressed : t.getSuppressed()) {
+            trim(suppressed, visited);
+        }
+        return t;
+    }
+
+    private static Set<Throwable> newVisitedSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private static boolean isLauncherFrame(StackTraceElement frame) {
+        String cls = frame.getClassName();
+        return cls.equals(AxLauncher.class.getName()) || cls.startsWith("java.lang.reflect.")
+                || cls.startsWith("sun.reflect.") || cls.startsWith("jdk.internal.reflect.");
+    }
+}
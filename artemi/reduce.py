@@ -0,0 +1,290 @@
+# MIT License
+# 
+# Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+# 
+# Permission is hereby granted, free of charge, to any person obtaining a copy
+# of this software and associated documentation files (the "Software"), to deal
+# in the Software without restriction, including without limitation the rights
+# to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the Software is
+# furnished to do so, subject to the following conditions:
+# 
+# The above copyright notice and this permission notice shall be included in all
+# copies or substantial portions of the Software.
+# 
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+# IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+# FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+# AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+# LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+# OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+# SOFTWARE.
+
+import shutil
+import sys
+from concurrent.futures import ThreadPoolExecutor
+from pathlib import Path
+from subprocess import TimeoutExpired
+from typing import Dict, List, Optional, Set
+
+from artemi import \
+    Command, \
+    CommandResult, \
+    JavaVM, \
+    ReduceService, \
+    BrickBlacklist, \
+    DiffTriage, \
+    MutantSteps, \
+    TIMEOUT_SPEC_CODE, \
+    script_check, \
+    exec_time, \
+    format_time, \
+    java_fingerprint, \
+    read_conf, \
+    create_java_from_conf, \
+    create_jvm_from_conf, \
+    create_sandbox_from_conf
+
+
+class VariantOracle:
+    """
+    VariantOracle tells whether a variant of a mutant reproduces the difference being reduced.
+    The reference of a mutant no longer tells the expected output once the mutant is reduced, so
+    a variant is compared with itself run by the interpreter (-Xint) instead, and reproduces if it
+    differs by the signature of the unreduced mutant (see DiffTriage). For output differences,
+    whose first differing line changes with the reduction, only the kind of signature counts.
+    """
+
+    def __init__(self, jvm: JavaVM, run_timeout: int):
+        self.jvm = jvm
+        self.run_timeout = run_timeout * 2  # Allow more time for mutants as the campaign does
+        self.signature: Optional[str] = None
+
+    def test(self, java_file: Path) -> Optional[str]:
+        # Return the signature of the difference of the variant, None if it does not differ
+        for f in java_file.parent.glob('*.class'):
+            f.unlink()  # Classes of types removed from the variant should be gone
+        res = self.jvm.compile(java_file, timeout=MutantSteps.compilation_timeout)
+        if res.clazz is None:
+            return None
+        try:
+            ref_result = self.jvm.run(res, do_force=JavaVM.FORCED_INT, timeout=self.run_timeout)
+        except TimeoutExpired:
+            return None  # The variant hangs anyway, e.g., the increment of a loop is removed
+        try:
+            mut_result = self.jvm.run(res, timeout=self.run_timeout)
+        except TimeoutExpired as e:
+            mut_result = CommandResult(TIMEOUT_SPEC_CODE, str(e))
+        if ref_result.retcode == mut_result.retcode and ref_result.output == mut_result.output:
+            return None
+        return DiffTriage.signature(ref_result.retcode, ref_result.output,
+                                    mut_result.retcode, mut_result.output)
+
+    def reproduces(self, signature: Optional[str]) -> bool:
+        if signature is None:
+            return False
+        if self.signature.startswith('output|'):
+            return signature.startswith('output|')
+        return signature == self.signature
+
+
+class Reducer:
+    """
+    Reducer reduces a mutant by hierarchical delta debugging: it removes members of types (outer
+    ones first), then code bricks, then statements of blocks (outer ones first), and finally
+    shrinks loop trips, and starts over with the reduced mutant until nothing can be reduced.
+    Variants are printed by ReduceService, and are tested in parallel by num_proc threads (each
+    compiling and running in processes), and variants already tested are never tested again.
+    """
+
+    PHASES = ['member', 'brick', 'stmt', 'trip']
+
+    def __init__(self, service: ReduceService, oracle: VariantOracle, num_proc: int,
+                 work_dir: Path, mutant_name: str, sources: List[Path]):
+        self.service = service
+        self.oracle = oracle
+        self.work_dir = work_dir
+        self.mutant_name = mutant_name
+        self.sources = sources  # other sources the mutant depends on
+        self.num_proc = num_proc
+        self.num_tested = 0
+        self.num_cached = 0
+        self._cache: Dict[str, bool] = {}  # fingerprints of variants to whether they reproduce
+        self._slots: List[Path] = []
+        self._executor = ThreadPoolExecutor(max_workers=num_proc)
+
+    def close(self):
+        self._executor.shutdown()
+
+    def reduce(self, mutant_file: Path, bricks_file: Optional[Path]) -> Optional[Path]:
+        # Return the reduced mutant, or None if the mutant does not reproduce by itself
+        current = self.slot(0)
+        self._print(mutant_file, bricks_file, current, [])
+        self.oracle.signature = self.oracle.test(current)
+        if self.oracle.signature is None:
+            return None
+        print(f'- Reduce: reducing {mutant_file}, signature: {self.oracle.signature}')
+        current = self.work_dir / 'current' / self.mutant_name
+        prepare_dir(current.parent, self.sources)
+        shutil.copyfile(self.slot(0), current)
+
+        rounds = 0
+        while True:
+            rounds += 1
+            # Candidates of bricks only match the mutant as printed by Artemis
+            candidates = self._load(current, bricks_file if rounds == 1 else None)
+            removed: Set[int] = set()
+            for phase in self.PHASES:
+                depths = sorted(set(d for _, kind, d, _ in candidates if kind == phase))
+                for depth in depths:
+                    group = [i for i, kind, d, _ in candidates if kind == phase and d == depth]
+                    removed = self.ddmin(removed, group)
+            print(f'- Reduce: round {rounds}, removed {len(removed)}/{len(candidates)} candidates')
+            if len(removed) == 0:
+                return current
+            script_check(self.service.print_variant(current, sorted(removed)),
+                         f'Cannot print the reduced {current}')
+
+    def ddmin(self, removed: Set[int], group: List[int]) -> Set[int]:
+        # Remove as many candidates of group as possible on top of those removed, by splitting
+        # them into n chunks and trying to remove each chunk, all chunks in parallel; there are
+        # never fewer chunks than threads unless there are fewer candidates
+        items, min_n = list(group), max(2, self.num_proc)
+        n = min_n
+        while len(items) != 0:
+            n = min(n, len(items))
+            chunks = [items[i * len(items) // n:(i + 1) * len(items) // n] for i in range(n)]
+            found = self._test_all([sorted(removed.union(c)) for c in chunks])
+            if found is not None:
+                removed = removed.union(chunks[found])
+                items = [i for i in items if i not in chunks[found]]
+                n = max(n - 1, min_n)
+            elif n < len(items):
+                n = min(n * 2, len(items))
+            else:
+                break
+        return removed
+
+    def slot(self, index: int) -> Path:
+        # Variants are tested in their own dirs, together with the sources they depend on
+        while len(self._slots) <= index:
+            slot_dir = self.work_dir / str(len(self._slots))
+            prepare_dir(slot_dir, self.sources)
+            self._slots.append(slot_dir)
+        return self._slots[index] / self.mutant_name
+
+    def _test_all(self, removals: List[List[int]]) -> Optional[int]:
+        # Return the index of the first removal whose variant reproduces, None if none does
+        fingerprints, pending = [], {}
+        for i, removed in enumerate(removals):
+            variant = self.slot(i)
+            script_check(self.service.print_variant(variant, removed),
+                         f'Cannot print variant to {variant}')
+            fingerprint = java_fingerprint(variant.read_text(encoding='utf-8', errors='replace'))
+            fingerprints.append(fingerprint)
+            if fingerprint in self._cache or fingerprint in pending:
+                self.num_cached += 1
+            else:
+                pending[fingerprint] = self._executor.submit(self._test, variant)
+        self.num_tested += len(pending)
+        for fingerprint, future in pending.items():
+            self._cache[fingerprint] = future.result()
+        for i, fingerprint in enumerate(fingerprints):
+            if self._cache[fingerprint]:
+                return i
+        return None
+
+    def _test(self, variant: Path) -> bool:
+        return self.oracle.reproduces(self.oracle.test(variant))
+
+    def _load(self, java_file: Path, bricks_file: Optional[Path]):
+        candidates = self.service.load(java_file, bricks_file)
+        script_check(candidates is not None, f'Cannot load {java_file} to reduce')
+        return candidates
+
+    def _print(self, java_file: Path, bricks_file: Optional[Path], out_file: Path,
+               removed: List[int]):
+        self._load(java_file, bricks_file)
+        script_check(self.service.print_variant(out_file, removed),
+                     f'Cannot print {java_file} to {out_file}')
+
+
+def prepare_dir(dir_: Path, sources: List[Path]):
+    # Make dir_ with (links of) the sources that the mutant depends on
+    res = Command.mkdir(dir_, can_exist=True)
+    script_check(res.retcode == 0, f'Cannot mkdir for {dir_}: {res.output}')
+    for f in sources:
+        if not (dir_ / f.name).exists():
+            res = Command.link(f, dir_)
+            script_check(res.retcode == 0, f'Cannot link {f} to {dir_}: {res.output}')
+
+
+def find_mutant(diff_dir: Path) -> Optional[Path]:
+    # The mutant is the source of the mutant dir differing from the reference's, the others are
+    # linked from the reference dir, see TestResultWriter
+    for f in (diff_dir / 'mutant').glob('*.java'):
+        ref_file = diff_dir / f.name
+        if not ref_file.exists() or ref_file.read_bytes() != f.read_bytes():
+            return f
+    return None
+
+
+def reduce_diff(diff_dir: Path, service: ReduceService, oracle: VariantOracle, num_proc: int):
+    mutant_file = find_mutant(diff_dir)
+    if mutant_file is None:
+        print(f'- Reduce: no mutant is found in {diff_dir}, skip')
+        return
+    # Sources the mutant depends on (e.g., FuzzerUtils.java) are saved with the reference, but are
+    # not in the mutant dir once they are shared by all tests, see share_support_classes()
+    sources = [f for f in diff_dir.glob('*.java') if f.name != mutant_file.name]
+    bricks_file = mutant_file.parent / BrickBlacklist.BRICKS_NAME
+
+    work_dir = diff_dir / 'reducing'
+    reducer = Reducer(service, oracle, num_proc, work_dir, mutant_file.name, sources)
+    try:
+        reduced, elapsed = exec_time(reducer.reduce, mutant_file,
+                                     bricks_file if bricks_file.exists() else None)
+        if reduced is None:
+            print(f'- Reduce: the mutant does not differ from itself run by the interpreter, '
+                  f'skip {diff_dir}')
+            return
+        out_dir = diff_dir / 'reduced'
+        prepare_dir(out_dir, sources)
+        shutil.copyfile(reduced, out_dir / mutant_file.name)
+        orig_lines = len(mutant_file.read_text(encoding='utf-8', errors='replace').splitlines())
+        lines = len(reduced.read_text(encoding='utf-8', errors='replace').splitlines())
+        with (out_dir / 'reduce.txt').open('w') as f:
+            f.write(f'signature: {oracle.signature}\n')
+            f.write(f'lines: {orig_lines} -> {lines}\n')
+            f.write(f'variants: {reducer.num_tested} tested, {reducer.num_cached} cached\n')
+            f.write(f'time: {format_time(elapsed)}\n')
+        print(f'- Reduce: reduced {mutant_file} from {orig_lines} to {lines} lines '
+              f'in {format_time(elapsed)}, save to {out_dir}')
+    finally:
+        reducer.close()
+        shutil.rmtree(work_dir, ignore_errors=True)
+
+
+def main(conf_path: Path, diff_dirs: List[Path]):
+    script_check(conf_path.exists(), f'Conf does not exist: {conf_path}')
+
+    conf = read_conf(conf_path)
+    java = create_java_from_conf(conf['java'], conf['artemis']['jar'])
+    jvm = create_jvm_from_conf(conf['jvm'], java, conf['artemis']['jar'],
+                               create_sandbox_from_conf(conf['sandbox']))
+    oracle = VariantOracle(jvm, conf['prog_timeout'])
+
+    service = ReduceService(java.java, conf['artemis']['jar'])
+    try:
+        for diff_dir in diff_dirs:
+            script_check(diff_dir.is_dir(), f'Difference does not exist: {diff_dir}')
+            reduce_diff(diff_dir, service, oracle, conf['num_proc'])
+    finally:
+        service.close()
+
+
+if __name__ == '__main__':
+    if len(sys.argv) < 3:
+        print(f'usage: {sys.argv[0]} <conf_yaml> <diff_dir> [<diff_dir>...]')
+        exit(1)
+    main(Path(sys.argv[1]), [Path(p) for p in sys.argv[2:]])
@@ -21,12 +21,14 @@
 # SOFTWARE.
 
 import itertools
+import os
 import signal
+import threading
 import time
 from abc import abstractmethod
-from multiprocessing import Pool, Manager, Process, TimeoutError
-from queue import Empty as QueueIsEmpty
-from typing import TypeVar, Generic, Optional
+from multiprocessing import Pool, Process, TimeoutError, Queue, BoundedSemaphore, Array
+from queue import Empty as QueueIsEmpty, Full as QueueIsFull, Queue as ThreadQueue
+from typing import TypeVar, Generic, Optional, Any, Callable, Dict, List, Tuple
 
 from utils import script_check, signal_name
 
@@ -77,6 +79,14 @@ class MprExecutor(Generic[_T, _R]):
     def should_early_exit(self, i: int, t: _T) -> bool:
         return False
 
+    # noinspection PyMethodMayBeStatic,PyUnusedLocal
+    def count_timeouts(self, r: Optional[_R]) -> Tuple[int, int]:
+        """
+        Called in the executor's process after executing an item. Return the number of runs that
+        timed out and the number of all runs of the result, see Autoscaler.
+        """
+        return 0, 0
+
 
 class MprExecutorEarlyExit(Exception): pass
 
@@ -87,6 +97,14 @@ class MprHandler(Generic[_R]):
     def __call__(self, r: Optional[_R]):
         pass
 
+    # noinspection PyMethodMayBeStatic
+    def summary(self):
+        """
+        Called in the handler's process after all results are handled. The returned
+        (picklable) object is sent back, see MultiProcRunner.handler_summary().
+        """
+        return None
+
 
 class KilledByUserSignal(Exception):
 
@@ -94,21 +112,152 @@ class KilledByUserSignal(Exception):
         self.sig = sig
 
 
+class _EndOfResults:
+    """
+    Sentinel put to the result queue after the last result. Compared by type
+    as the sentinel is pickled through the queue.
+    """
+    pass
+
+
+# The executor, semaphore, result queue, and timeout counts of a pool worker, see _init_executor()
+_executor: Optional[MprExecutor] = None
+_executor_sema = None
+_executor_queue = None
+_executor_timeouts = None
+
+
+def _init_executor(executor, sema, queue, timeouts=None):
+    # Pool workers inherit these once rather than receiving them with every item,
+    # multiprocessing's queues and semaphores can only be shared by inheritance
+    global _executor, _executor_sema, _executor_queue, _executor_timeouts
+    _executor = executor
+    _executor_sema = sema
+    _executor_queue = queue
+    _executor_timeouts = timeouts
+
+
+def mem_available() -> float:
+    # Fraction of the memory available for new processes, 1.0 if unknown
+    try:
+        with open('/proc/meminfo') as f:
+            info = dict(line.split(':', 1) for line in f)
+        return int(info['MemAvailable'].split()[0]) / int(info['MemTotal'].split()[0])
+    except (OSError, KeyError, ValueError, ZeroDivisionError):
+        return 1.0
+
+
+class Autoscaler:
+    """
+    Autoscaler adapts the number of items executed at once (i.e., active executors) within
+    [min_active, num_proc] to the machine, rather than always keeping num_proc executors busy.
+    Every interval seconds, it shrinks the number by a quarter once the machine is overloaded
+    (the load average per cpu exceeds max_load, or the fraction of available memory drops below
+    min_mem_available), or once executors starve (the fraction of their runs timing out exceeds
+    max_timeout_rate, see MprExecutor.count_timeouts()), and grows it by one otherwise.
+
+    The number is enforced by parking permits of the runner's semaphore in a thread of the
+    runner's process: parked permits are never released to submit items.
+    """
+
+    _TICK = 0.5  # seconds between two attempts to park permits
+    _MIN_RUNS = 10  # runs needed to tell the rate of timeouts, fewer are accumulated
+
+    def __init__(self,
+                 min_active: int,
+                 interval: float = 30,
+                 max_load: float = 1.0,
+                 min_mem_available: float = 0.1,
+                 max_timeout_rate: float = 0.1):
+        script_check(min_active > 0, 'Autoscaler requires at least 1 active executor')
+        self.min_active = min_active
+        self.interval = interval
+        self.max_load = max_load
+        self.min_mem_available = min_mem_available
+        self.max_timeout_rate = max_timeout_rate
+        self._sema = None
+        self._timeouts = None  # [timeouts, runs] counted by executors
+        self._permits = 0
+        self._parked = 0
+        self._max_active = 0
+        self._active = 0
+        self._stopped = threading.Event()
+        self._thread: Optional[threading.Thread] = None
+
+    def start(self, sema, permits: int, max_active: int, timeouts):
+        # Take over the semaphore of permits, and start with min_active executors
+        self._sema = sema
+        self._permits = permits
+        self._timeouts = timeouts
+        self._max_active = max(max_active, self.min_active)
+        self._active = min(self.min_active, self._max_active)
+        self._park()
+        self._stopped.clear()
+        self._thread = threading.Thread(target=self._scale, name='autoscaler', daemon=True)
+        self._thread.start()
+
+    def stop(self):
+        self._stopped.set()
+        if self._thread is not None:
+            self._thread.join()
+            self._thread = None
+
+    def _scale(self):
+        last = time.time()
+        while not self._stopped.wait(self._TICK):
+            if time.time() - last >= self.interval:
+                self._adjust()
+                last = time.time()
+            self._park()
+
+    def _adjust(self):
+        load = os.getloadavg()[0] / (os.cpu_count() or 1)
+        mem = mem_available()
+        with self._timeouts.get_lock():
+            timeouts, runs = self._timeouts[0], self._timeouts[1]
+            if runs >= self._MIN_RUNS:
+                self._timeouts[0] = self._timeouts[1] = 0
+        timeout_rate = timeouts / runs if runs >= self._MIN_RUNS else 0.0
+        if load > self.max_load or mem < self.min_mem_available or timeout_rate > self.max_timeout_rate:
+            active = max(self.min_active, self._active - max(1, self._active // 4))
+        else:
+            active = min(self._max_active, self._active + 1)
+        if active != self._active:
+            print(f'* Autoscale: {self._active} -> {active} active executors (load: {load:.2f}/cpu, '
+                  f'memory available: {mem:.0%}, timeouts: {timeouts}/{runs} runs)')
+            self._active = active
+
+    def _park(self):
+        # Items in flight are at most the unparked permits, i.e., the active executors
+        want = self._permits - self._active
+        while self._parked < want and self._sema.acquire(block=False):
+            self._parked += 1
+        while self._parked > want:
+            self._sema.release()
+            self._parked -= 1
+
+
 class MultiProcRunner(Generic[_T, _R]):
+
+    _ABNORMAL_STOP_PATIENCE = 15  # seconds to wait for the handler if stopped abnormally
+
     def __init__(self,
                  num_proc: int,
                  generator: MprGenerator[_T],
                  executor: MprExecutor[_T, _R],
                  handler: Optional[MprHandler[_R]] = None,
-                 queue_size=128):
+                 queue_size=128,
+                 autoscaler: Optional[Autoscaler] = None):
         self.num_proc = num_proc
         self.queue_size = queue_size
         self.generator = generator
         self.executor = executor
         self.handler = handler
+        self.autoscaler = autoscaler
         self._norm_stop = False
         self._started = False
         self._stopped = False
+        self._handler_summary = None
 
     def is_stopped(self):
         return self._started and self._stopped
@@ -117,16 +266,23 @@ class MultiProcRunner(Generic[_T, _R]):
         script_check(self.is_stopped(), "The runner hasn't started or stopped")
         return self._norm_stop
 
-    def run(self, manager):
+    def handler_summary(self):
+        # What the handler's summary() returns, None if the handler didn't finish
+        script_check(self.is_stopped(), "The runner hasn't started or stopped")
+        return self._handler_summary
+
+    def run(self):
         if self._started: return
         else: self._started = True
 
         # Create a writer for writing result in a single process
         if self.handler is not None:
-            queue = manager.Queue(maxsize=self.queue_size)
-            hproc = Process(target=self._handle_wrapper, args=(queue,))
+            queue = Queue(maxsize=self.queue_size)
+            summary_queue = Queue(maxsize=1)
+            hproc = Process(target=self._handle_wrapper, args=(queue, summary_queue))
         else:
             queue = None
+            summary_queue = None
             hproc = None
 
         # Workaround: Pool.*_async() functions never block even if all
@@ -134,8 +290,12 @@ class MultiProcRunner(Generic[_T, _R]):
         # maintains an infinite SimpleQueue instead of a finite Queue,
         # making the SimpleQueue to grow unlimitedly. So in here, we use
         # a semaphore to ensure only limited tasks are submitted.
-        pool = Pool(self.num_proc)
-        sema = manager.BoundedSemaphore(self.num_proc * 2)
+        sema = BoundedSemaphore(self.num_proc * 2)
+        timeouts = Array('Q', 2) if self.autoscaler is not None else None
+        pool = Pool(self.num_proc, initializer=_init_executor,
+                    initargs=(self.executor, sema, queue, timeouts))
+        if self.autoscaler is not None:
+            self.autoscaler.start(sema, self.num_proc * 2, self.num_proc, timeouts)
 
         self._norm_stop = False
         try:
@@ -152,8 +312,7 @@ class MultiProcRunner(Generic[_T, _R]):
                 if self.executor.should_early_exit(ind, item):
                     raise MprExecutorEarlyExit()
                 sema.acquire()  # Make sure only limited tasks are submitted, otherwise wait
-                res = pool.apply_async(self._execute_wrapper,
-                                       args=(ind, item, sema, queue))
+                res = pool.apply_async(MultiProcRunner._execute_wrapper, args=(ind, item))
                 # Work around to let the async task to run. Removing
                 # the following two lines will make no works to run
                 try: res.get(timeout=0)
@@ -170,6 +329,9 @@ class MultiProcRunner(Generic[_T, _R]):
         except KilledByUserSignal as e:
             print(f'* Stopped by KilledByUserSignal({signal_name(e.sig)})')
         finally:
+            if self.autoscaler is not None:
+                self.autoscaler.stop()
+
             # Exception happens, terminate the pool directly
             if not self._norm_stop:
                 pool.terminate()
@@ -179,37 +341,171 @@ class MultiProcRunner(Generic[_T, _R]):
             print('* Joining the pool, this may take some time')
             pool.join()
 
-            if self._norm_stop:
-                print('* Give 15s to the handler to handler rest results', end='', flush=True)
-                for i in range(15):
-                    print('.', end='', flush=True)
-                    time.sleep(1)
-                print()
-
-            print('* Terminating handler process, this may take some time')
             if hproc is not None:
-                hproc.terminate()
+                self._stop_handler(hproc, queue, summary_queue)
 
         print('* Runner exited')
         self._stopped = True
 
-    def _execute_wrapper(self, index: int, item: _T, sema, queue):
+    def _stop_handler(self, hproc, queue, summary_queue):
+        # All results are in the queue now, let the handler drain them and stop at the sentinel.
+        # If stopped abnormally, the queue may have been broken by terminated workers, or the
+        # handler may have been interrupted as well, so don't wait forever.
+        print('* Waiting for the handler to handle pending results')
+        patience = None if self._norm_stop else self._ABNORMAL_STOP_PATIENCE
+        try:
+            queue.put(_EndOfResults(), timeout=patience)
+            begin = time.time()
+            while hproc.is_alive() or not summary_queue.empty():
+                try:
+                    self._handler_summary = summary_queue.get(timeout=1)
+                    break
+                except QueueIsEmpty:
+                    if patience is not None and time.time() - begin > patience:
+                        break
+        except QueueIsFull:
+            pass
+        hproc.join(timeout=self._ABNORMAL_STOP_PATIENCE)  # It exits right after the summary
+        if hproc.is_alive():
+            print('* Terminating handler process')
+            hproc.terminate()
+            hproc.join()
+
+    @staticmethod
+    def _execute_wrapper(index: int, item: _T):
         try:
             print(f'+ Execute: starts to execute item (index: {index})')
-            queue.put(self.executor(index, item))
+            result = _executor(index, item)
+            if _executor_queue is not None:
+                _executor_queue.put(result)
+            if _executor_timeouts is not None:
+                timeouts, runs = _executor.count_timeouts(result)
+                with _executor_timeouts.get_lock():
+                    _executor_timeouts[0] += timeouts
+                    _executor_timeouts[1] += runs
             print(f'> Finished: item (index: {index}) is executed')
         except KeyboardInterrupt:
             pass
         except Exception as e:
             print(f'! Exception: item (index: {index}): {e}')
         finally:
-            sema.release()
+            _executor_sema.release()
 
-    def _handle_wrapper(self, queue):
+    def _handle_wrapper(self, queue, summary_queue):
         try:
             while True:
-                while not queue.empty():
-                    try: self.handler(queue.get(block=False, timeout=0.1))
-                    except QueueIsEmpty: break  # add this because empty() is not reliable
-                time.sleep(0.5)
+                result = queue.get()  # Block until any result comes, no polling
+                if isinstance(result, _EndOfResults):
+                    break
+                self.handler(result)
+            summary_queue.put(self.handler.summary())
         except KeyboardInterrupt: pass
+
+
+"""
+StagePipeline runs items through a chain of stages inside a single process, each stage with its
+own worker threads, such that stages overlap: while a stage handles an item, other stages handle
+other items. It suits stages that mostly wait for subprocesses (e.g., javac, java):
+------------------------------------------------------------------------------------
+
+    submit() => [ stage 0 ] => queue => [ stage 1 ] => queue => ... => [ stage n ]
+                 k0 workers             k1 workers                     kn workers
+
+------------------------------------------------------------------------------------
+A stage is a function taking an item and returning what to pass to the next stage, or None to
+finish the item. Items enter the first stage by submit() anytime, even by the stages themselves
+(e.g., to retry an item). Queues between stages are bounded, so a slow stage blocks its upstream
+stages rather than letting items pile up (backpressure).
+"""
+
+
+class StagePipeline:
+
+    _STOP = object()
+
+    def __init__(self, stages: List[Tuple[str, int, Callable[[Any], Any]]], queue_size: int = 2):
+        script_check(len(stages) != 0, 'No stages are given')
+        script_check(all(num_workers > 0 for _, num_workers, _ in stages),
+                     'Every stage requires at least 1 worker')
+        self.stages = stages
+        # The first queue is unbounded as stages may submit to it, which should never block
+        self._queues = [ThreadQueue()] + [ThreadQueue(maxsize=queue_size) for _ in stages[1:]]
+        self._busy = [0.0] * len(stages)
+        self._cond = threading.Condition()
+        self._pending = 0
+        self._error: Optional[BaseException] = None
+        self._threads: List[List[threading.Thread]] = []
+        self._begin = None
+        self._elapsed = 0.0
+
+    def start(self):
+        script_check(self._begin is None, 'The pipeline has started')
+        self._begin = time.time()
+        for i, (name, num_workers, _) in enumerate(self.stages):
+            threads = [threading.Thread(target=self._work, args=(i,), name=f'{name}-{k}', daemon=True)
+                       for k in range(num_workers)]
+            for t in threads:
+                t.start()
+            self._threads.append(threads)
+
+    def submit(self, item):
+        with self._cond:
+            self._pending += 1
+        self._queues[0].put(item)
+
+    def join(self):
+        # Wait until every submitted item is finished, raise the first error of stages if any
+        with self._cond:
+            while self._pending != 0 and self._error is None:
+                self._cond.wait()
+            if self._error is not None:
+                raise self._error
+
+    def stop(self):
+        # Stop stages one by one such that items in flight can always go downstream
+        for i, threads in enumerate(self._threads):
+            for _ in threads:
+                self._queues[i].put(self._STOP)
+            for t in threads:
+                t.join()
+        self._threads = []
+        self._elapsed = time.time() - self._begin
+
+    def utilization(self) -> Dict[str, float]:
+        # Fraction of the time each stage's workers were busy
+        elapsed = self._elapsed if self._threads == [] else time.time() - self._begin
+        with self._cond:
+            return {name: (self._busy[i] / (num_workers * elapsed) if elapsed > 0 else 0.0)
+                    for i, (name, num_workers, _) in enumerate(self.stages)}
+
+    def format_utilization(self) -> str:
+        util = self.utilization()
+        return ', '.join(f'{name} {util[name]:.0%} (x{num_workers})'
+                         for name, num_workers, _ in self.stages)
+
+    def _work(self, i: int):
+        _, _, func = self.stages[i]
+        while True:
+            item = self._queues[i].get()
+            if item is self._STOP:
+                return
+            output = None
+            if self._error is None:  # Drop everything once any stage failed
+                begin = time.time()
+                try:
+                    output = func(item)
+                except BaseException as e:
+                    output = None
+                    with self._cond:
+                        if self._error is None:
+                            self._error = e
+                        self._cond.notify_all()
+                with self._cond:
+                    self._busy[i] += time.time() - begin
+            if output is not None and i + 1 != len(self.stages):
+                self._queues[i + 1].put(output)
+            else:
+                with self._cond:
+                    self._pending -= 1
+                    if self._pending == 0:
+                        self._cond.notify_all()
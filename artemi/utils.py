@@ -20,18 +20,30 @@
 # OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 # SOFTWARE.
 
+import codecs
+import fcntl
+import hashlib
+import math
+import multiprocessing
 import os
+import resource
+import select
 import shlex
+import shutil
 import signal
 import sys
+import tempfile
+import threading
 import time
 from pathlib import Path
+from queue import Queue as ThreadQueue
 from subprocess import Popen, \
     CompletedProcess, \
     TimeoutExpired, \
     PIPE, \
     STDOUT, \
     CalledProcessError
+from typing import Optional, Tuple, Callable, List
 
 
 #
@@ -68,6 +80,266 @@ def run_proc(cmd, stdout, stderr, timeout):
     return CompletedProcess(proc.args, retcode, output, err_msg)
 
 
+class OutputMonitor:
+    """
+    OutputMonitor compares the output of a running program with an expected output as soon as
+    the program writes it, and tells when the program is doomed to differ from the expectation,
+    i.e., once its output diverges from, or goes beyond, the expected output. Outputs compare
+    as Command.run() gives them, i.e., stripped. It also tells when the program clearly hangs:
+    it has written all the expected output yet keeps running silently for stall_timeout.
+    A diverged program is not stopped right away, as what it writes next (e.g., the report of a
+    crash, or the stack of an exception) and its exit code tell the difference: it's left to exit
+    by itself within DRAIN_GRACE seconds and DRAIN_LIMIT more bytes, and only then stopped, in
+    which case its output is truncated. With early_kill off, it's always left to exit by itself.
+    """
+
+    DIVERGED = 'diverged'
+    DRAIN_GRACE = 5.0  # seconds
+    DRAIN_LIMIT = 1024 * 1024  # bytes
+
+    def __init__(self, expected: str, stall_timeout: float, early_kill: bool = True):
+        self.expected = expected
+        self.stall_timeout = stall_timeout
+        self.early_kill = early_kill
+        self.verdict: Optional[str] = None
+        self.truncated = False  # whether the program was stopped before exiting by itself
+        self._decoder = codecs.getincrementaldecoder('utf-8')(errors='replace')
+        self._matched = 0  # number of expected chars that are written
+        self._leading = True  # stripping leading whitespaces
+        self._last_write = time.time()
+        self._diverged_at: Optional[float] = None
+        self._drained = 0  # number of bytes written after diverging
+
+    def feed(self, data: bytes) -> bool:
+        # Feed newly written data, return False if the program should be stopped right now, i.e.,
+        # it has diverged and written more than DRAIN_LIMIT bytes since then
+        self._last_write = time.time()
+        if self.verdict is not None:
+            self._drained += len(data)
+            if self.early_kill and self._drained > self.DRAIN_LIMIT:
+                self.truncated = True
+                return False
+            return True
+        text = self._decoder.decode(data)
+        if self._leading:
+            text = text.lstrip()
+            if len(text) == 0:
+                return True
+            self._leading = False
+        count = min(len(text), len(self.expected) - self._matched)
+        # Only trailing whitespaces are allowed after the expected output
+        if (text[:count] != self.expected[self._matched:self._matched + count] or
+                len(text[count:].strip()) != 0):
+            self.verdict = OutputMonitor.DIVERGED
+            self._diverged_at = time.time()
+            return True
+        self._matched += count
+        return True
+
+    def stall_deadline(self) -> Optional[float]:
+        # When the program is deemed to hang, or None if it's still expected to write
+        if self.verdict is not None or len(self.expected) == 0 or self._matched < len(self.expected):
+            return None
+        return self._last_write + self.stall_timeout
+
+    def drain_deadline(self) -> Optional[float]:
+        # When the diverged program should be stopped if it's still running, or None if never
+        if self.verdict is None or not self.early_kill:
+            return None
+        return self._diverged_at + self.DRAIN_GRACE
+
+
+def communicate_monitored(proc: Popen, input_data: Optional[bytes], timeout: float,
+                          monitor: Optional[OutputMonitor] = None) -> Tuple[bytes, float]:
+    # Like proc.communicate() for a proc started in a new session and writing its stderr to its
+    # stdout, but feeding monitor (if any) with the output as soon as it's written. Kill proc's
+    # process group once monitor finds it diverged and not exiting by itself (which truncates
+    # its output, see OutputMonitor), and raise TimeoutExpired once it times out or monitor
+    # finds it hanging. Return the output and the cpu time proc took.
+    deadline = time.time() + timeout
+    chunks = []
+    try:
+        if input_data is not None:
+            try:
+                proc.stdin.write(input_data)
+                proc.stdin.close()
+            except BrokenPipeError:
+                pass  # Exited without reading its input, let's see what it wrote
+        fd = proc.stdout.fileno()
+        while True:
+            drain_deadline = monitor.drain_deadline() if monitor is not None else None
+            if drain_deadline is not None and time.time() >= drain_deadline:
+                monitor.truncated = True
+                safe_killpg(proc.pid, signal.SIGKILL)
+                break
+            stall_deadline = monitor.stall_deadline() if monitor is not None else None
+            wait = min(deadline, stall_deadline or deadline, drain_deadline or deadline) - time.time()
+            if wait <= 0:
+                stalled = time.time() < deadline
+                raise TimeoutExpired(proc.args, monitor.stall_timeout if stalled else timeout)
+            ready, _, _ = select.select([fd], [], [], wait)
+            if len(ready) == 0:
+                continue
+            data = os.read(fd, 65536)
+            if len(data) == 0:
+                break  # All writers are closed
+            chunks.append(data)
+            if monitor is not None and not monitor.feed(data):
+                safe_killpg(proc.pid, signal.SIGKILL)
+                break
+        cpu_time = wait_measured(proc, deadline, timeout)
+    except:  # Including TimeoutExpired, KeyboardInterrupt, as run_proc() does
+        safe_killpg(proc.pid, signal.SIGKILL)
+        proc.wait()
+        raise
+    return b''.join(chunks), cpu_time
+
+
+def wait_measured(proc: Popen, deadline: float, timeout: float) -> float:
+    # Like proc.wait() but reap proc by wait4() to get the cpu time (user and system) it took,
+    # including its reaped children's; raise TimeoutExpired if it does not exit by deadline
+    while True:
+        pid, status, usage = os.wait4(proc.pid, os.WNOHANG)
+        if pid != 0:
+            break
+        if time.time() >= deadline:
+            raise TimeoutExpired(proc.args, timeout)
+        time.sleep(0.001)
+    proc.returncode = -os.WTERMSIG(status) if os.WIFSIGNALED(status) else os.WEXITSTATUS(status)
+    return usage.ru_utime + usage.ru_stime
+
+
+def process_cpu_time(pid: int) -> float:
+    # The cpu time (user and system) a running process has taken so far
+    with open(f'/proc/{pid}/stat') as f:
+        stat = f.read()
+    fields = stat[stat.rindex(')') + 2:].split()  # The command name may contain spaces
+    return (int(fields[11]) + int(fields[12])) / os.sysconf('SC_CLK_TCK')
+
+
+class Sandbox:
+    """
+    Sandbox confines commands (e.g., jvms running tests) such that whether they time out does not
+    depend on the load of the machine, and that parallel commands do not interfere:
+    - cpu_limit: limit the cpu time of a command (RLIMIT_CPU) to its timeout rather than its wall
+      time, which is only limited to wall_slack times its timeout as a backstop for sleeping ones;
+    - cpus_per_proc: pin commands of each process onto its own cpus, such that the jit and gc
+      threads of a jvm starve no sibling's but its own program (0 to not pin);
+    - cgroup: run each command in its own child of the cgroup (v2, delegated to us), which limits
+      its memory to memory_max (e.g., 4G) if given.
+    A command that exhausts its cpu time or wall time is timed out, see check_timeout().
+    """
+
+    def __init__(self,
+                 cpu_limit: bool = False,
+                 wall_slack: float = 3.0,
+                 cpus_per_proc: int = 0,
+                 cgroup: Optional[Path] = None,
+                 memory_max: Optional[str] = None):
+        self.cpu_limit = cpu_limit
+        self.wall_slack = wall_slack
+        self.cpus_per_proc = cpus_per_proc
+        self.cgroup = cgroup
+        self.memory_max = memory_max
+        self._cpus: Optional[List[int]] = None
+        self._pid = None  # the process owning _cpus
+
+    def wall_timeout(self, timeout: float) -> float:
+        return timeout * self.wall_slack if self.cpu_limit else timeout
+
+    def cpus(self) -> Optional[List[int]]:
+        # Cpus of this process: a slice of the cpus we're allowed to use, chosen by the index of the
+        # process among its siblings (pool workers are numbered from 1), None if not pinning
+        if self.cpus_per_proc == 0:
+            return None
+        if self._pid != os.getpid():
+            allowed = sorted(os.sched_getaffinity(0))
+            identity = multiprocessing.current_process()._identity
+            index = identity[0] - 1 if len(identity) != 0 else 0
+            num_slices = max(1, len(allowed) // self.cpus_per_proc)
+            start = (index % num_slices) * self.cpus_per_proc
+            self._cpus = allowed[start:start + self.cpus_per_proc]
+            self._pid = os.getpid()
+        return self._cpus
+
+    def open_cgroup(self) -> Optional[Path]:
+        # Create a child cgroup for a command, None if not using cgroups or failed to create it
+        if self.cgroup is None:
+            return None
+        try:
+            cgroup = Path(tempfile.mkdtemp(prefix=f'artemi-{os.getpid()}-', dir=self.cgroup))
+        except OSError:
+            return None
+        if self.memory_max is not None:
+            try:
+                (cgroup / 'memory.max').write_text(self.memory_max)
+            except OSError:
+                pass  # The memory controller is not enabled for children of self.cgroup
+        return cgroup
+
+    @staticmethod
+    def close_cgroup(cgroup: Path) -> bool:
+        # Remove the cgroup of a finished command, return whether it ran out of memory
+        oom_killed = False
+        try:
+            for line in (cgroup / 'memory.events').read_text().splitlines():
+                key, count = line.split()
+                oom_killed = oom_killed or (key == 'oom_kill' and int(count) > 0)
+        except (OSError, ValueError):
+            pass
+        try:
+            cgroup.rmdir()
+        except OSError:
+            pass  # Busy with processes escaped from the killed process group
+        return oom_killed
+
+    def preexec_fn(self, timeout: Optional[float],
+                   cgroup: Optional[Path]) -> Optional[Callable[[], None]]:
+        # Confine a new command in its child process before it executes, such that even its first
+        # threads are confined; without timeout, its cpu time is not limited (e.g., a pooled jvm)
+        cpus = self.cpus()
+        limit = math.ceil(timeout) if self.cpu_limit and timeout is not None else None
+        procs = str(cgroup / 'cgroup.procs') if cgroup is not None else None
+        if cpus is None and limit is None and procs is None:
+            return None
+
+        def confine():
+            # Only syscalls, the child of a multi-threaded process should not take locks
+            if procs is not None:
+                try:
+                    fd = os.open(procs, os.O_WRONLY)
+                    os.write(fd, str(os.getpid()).encode('ascii'))
+                    os.close(fd)
+                except OSError:
+                    pass  # Run it unconfined by the cgroup rather than failing it
+            if cpus is not None:
+                os.sched_setaffinity(0, cpus)
+            if limit is not None:
+                resource.setrlimit(resource.RLIMIT_CPU, (limit, limit + 1))
+
+        return confine
+
+    def confine_running(self, pid: int, timeout: float, cgroup: Optional[Path]) -> float:
+        # Confine a running process (e.g., a pooled jvm, whose cpus are confined by preexec_fn) for
+        # a command it's given; return the cpu time it has taken before the command
+        used = process_cpu_time(pid)
+        if cgroup is not None:
+            (cgroup / 'cgroup.procs').write_text(str(pid))  # Moving all its threads
+        if self.cpu_limit:
+            limit = math.ceil(used + timeout)
+            resource.prlimit(pid, resource.RLIMIT_CPU, (limit, limit + 1))
+        return used
+
+    def check_timeout(self, proc: Popen, cpu_time: float, timeout: float):
+        # Raise TimeoutExpired if proc was killed for exhausting its cpu time, i.e., SIGXCPU at
+        # the soft limit or SIGKILL at the hard one
+        if not self.cpu_limit:
+            return
+        if proc.returncode == -signal.SIGXCPU or \
+                (proc.returncode == -signal.SIGKILL and cpu_time >= math.ceil(timeout)):
+            raise TimeoutExpired(proc.args, timeout)
+
+
 # We add this helper function because signal.strsignal() is added from py3.8
 def signal_name(sig):
     return {
@@ -98,6 +370,71 @@ def format_time(delta: int) -> str:
         return f'{seconds}s ({delta}s)'
 
 
+# The ioctl request sharing the data blocks of a file with another (a
+# reflink), supported by btrfs, xfs, etc., see `man ioctl_ficlone`.
+FICLONE = 0x40049409
+
+
+def reflink_or_copy(source: Path, target: Path):
+    # Different from hard links, writing to the reflinked target does not
+    # write to source, so it's safe for files that will be overwritten later.
+    with open(source, 'rb') as src, open(target, 'wb') as dst:
+        try:
+            fcntl.ioctl(dst.fileno(), FICLONE, src.fileno())
+            cloned = True
+        except OSError:
+            cloned = False
+    if not cloned:
+        shutil.copyfile(source, target)
+    shutil.copymode(source, target)
+
+
+def link_or_copy(source: Path, target: Path):
+    # Only use it for targets that are never written, see reflink_or_copy().
+    if target.is_symlink() or target.exists():
+        target.unlink()
+    try:
+        os.link(source, target)
+    except OSError:  # Including cross-device links, e.g., from a tmpfs
+        reflink_or_copy(source, target)
+
+
+class AsyncRemover:
+    """
+    Remove files and directories in a background thread such that the caller
+    does not wait for removing a large directory. The thread is started at the
+    first removal, i.e., in the process that is actually removing files.
+    """
+
+    def __init__(self):
+        self._queue: Optional[ThreadQueue] = None
+        self._thread: Optional[threading.Thread] = None
+
+    def remove(self, path: Path):
+        if self._thread is None:
+            self._queue = ThreadQueue()
+            self._thread = threading.Thread(target=self._remove_loop, daemon=True)
+            self._thread.start()
+        self._queue.put(path)
+
+    def flush(self):
+        if self._queue is not None:
+            self._queue.join()
+
+    def _remove_loop(self):
+        while True:
+            path = self._queue.get()
+            try:
+                if path.is_dir() and not path.is_symlink():
+                    shutil.rmtree(path, ignore_errors=True)
+                elif path.exists():
+                    path.unlink()
+            except OSError:
+                pass  # Never abort the campaign for a leftover
+            finally:
+                self._queue.task_done()
+
+
 #
 # Common script utilities
 #
@@ -110,13 +447,77 @@ def script_check(pred: bool, msg: str):
         raise CheckError(msg)
 
 
+class OutputDigest:
+    """
+    OutputDigest stands for an output of a program (which may print megabytes) by its sha256, its
+    length, and bounded samples of its head and tail, such that outputs are compared in O(1) and
+    passed between processes cheaply. Outputs longer than the samples are only kept in whole if
+    they are spilled to a file, e.g., when they differ from expected ones.
+    """
+
+    SAMPLE_SIZE = 4096  # characters of the head and the tail each
+
+    def __init__(self, output: str):
+        self.sha256 = hashlib.sha256(output.encode('utf-8')).hexdigest()
+        self.length = len(output)
+        if self.length <= 2 * self.SAMPLE_SIZE:
+            self.head, self.tail = output, ''
+        else:
+            self.head, self.tail = output[:self.SAMPLE_SIZE], output[-self.SAMPLE_SIZE:]
+        self.spill_file: Optional[Path] = None
+
+    def is_whole(self) -> bool:
+        # Whether the samples are the whole output
+        return self.length <= 2 * self.SAMPLE_SIZE
+
+    def spill(self, output: str, spill_file: Path):
+        # Keep the whole output in spill_file, output should be the one digested
+        if not self.is_whole():
+            spill_file.write_text(output, encoding='utf-8')
+            self.spill_file = spill_file
+
+    def text(self) -> str:
+        # The whole output if possible, otherwise the samples with the omission in between
+        if self.is_whole():
+            return self.head
+        if self.spill_file is not None:
+            try:
+                return self.spill_file.read_text(encoding='utf-8')
+            except OSError:
+                pass
+        omitted = self.length - 2 * self.SAMPLE_SIZE
+        return f'{self.head}\n... ({omitted} characters omitted) ...\n{self.tail}'
+
+    def __eq__(self, other):
+        return isinstance(other, OutputDigest) and \
+            self.sha256 == other.sha256 and self.length == other.length
+
+    def __ne__(self, other):
+        return not self.__eq__(other)
+
+    def __hash__(self):
+        return hash(self.sha256)
+
+
 class CommandResult:
 
-    def __init__(self, retcode, output):
+    def __init__(self, retcode, output, cpu_time=None, wall_time=None):
         # retcode: return code of the command
-        # output: stdout on success of the command, or stderr on failure
+        # output: stdout on success of the command, or stderr on failure, None if compacted
+        # cpu_time: cpu time (seconds) the command took, None if not measured
+        # wall_time: wall time (seconds) the command took, None if not measured
+        # digest: digest of output, set once compacted, see compact()
         self.retcode = retcode
         self.output = output
+        self.cpu_time = cpu_time
+        self.wall_time = wall_time
+        self.digest: Optional[OutputDigest] = None
+
+    def compact(self, digest: Optional[OutputDigest] = None) -> 'CommandResult':
+        # A copy keeping the digest (given if already computed) rather than the output
+        result = CommandResult(self.retcode, None, self.cpu_time, self.wall_time)
+        result.digest = digest if digest is not None else OutputDigest(self.output)
+        return result
 
 
 class Command:
@@ -137,6 +538,34 @@ class Command:
             output = str(output, encoding='utf-8').strip()
         return CommandResult(retcode, output)
 
+    @staticmethod
+    def run_measured(cmd: str,
+                     timeout: int = 5,
+                     monitor: Optional[OutputMonitor] = None,
+                     sandbox: Optional[Sandbox] = None):
+        # Like run(), but measure the cpu and wall time of the command, stop it early according to
+        # monitor if given (see OutputMonitor), and confine it by sandbox if given (see Sandbox)
+        cgroup = sandbox.open_cgroup() if sandbox is not None else None
+        preexec_fn = sandbox.preexec_fn(timeout, cgroup) if sandbox is not None else None
+        wall_timeout = sandbox.wall_timeout(timeout) if sandbox is not None else timeout
+        oom_killed = False
+        start = time.time()
+        try:
+            with Popen(shlex.split(cmd), stdout=PIPE, stderr=STDOUT, start_new_session=True,
+                       preexec_fn=preexec_fn) as proc:
+                output, cpu_time = communicate_monitored(proc, None, wall_timeout, monitor)
+        finally:
+            if cgroup is not None:
+                oom_killed = Sandbox.close_cgroup(cgroup)
+        wall_time = time.time() - start
+        if sandbox is not None:
+            sandbox.check_timeout(proc, cpu_time, timeout)
+        # The output may end in the middle of a character if stopped early
+        output = str(output, encoding='utf-8', errors='replace').strip()
+        if oom_killed:
+            output += f'\nKilled by the sandbox: exceeded memory.max={sandbox.memory_max}'
+        return CommandResult(proc.returncode, output, cpu_time, wall_time)
+
     @staticmethod
     def redirected_run(cmd: str, stdout, stderr, timeout: int = 5):
         try:
@@ -155,32 +584,69 @@ class Command:
         res = fn(*args, kwargs)
         script_check(res.retcode == 0, f"Failed to run command Command.{cmd}: {res.output}")
 
+    # File operations below are done in process rather than by commands like
+    # cp and rm, which costs a fork and exec for each file. They keep the
+    # commands' semantics and return a CommandResult, with retcode 0 and an
+    # empty output on success, or retcode 1 and the error message on failure.
+
     @classmethod
     def copy(cls, source: Path, target: Path, is_dir: bool = False):
-        if is_dir:
-            return cls.run(f'cp -r {source.absolute()} {target.absolute()}')
-        else:
-            return cls.run(f'cp {source.absolute()} {target.absolute()}')
+        # Like cp [-r], copy into target if target is an existing directory
+        if target.is_dir():
+            target = target / source.name
+        try:
+            if is_dir:
+                shutil.copytree(source, target, copy_function=reflink_or_copy)
+            else:
+                reflink_or_copy(source, target)
+        except (OSError, shutil.Error) as e:
+            return CommandResult(1, str(e))
+        return CommandResult(0, '')
+
+    @classmethod
+    def link(cls, source: Path, target: Path):
+        # Like copy() while hard linking the file if possible, see link_or_copy()
+        if target.is_dir():
+            target = target / source.name
+        try:
+            link_or_copy(source, target)
+        except OSError as e:
+            return CommandResult(1, str(e))
+        return CommandResult(0, '')
 
     @classmethod
     def mkdir(cls, target: Path, can_exist: bool = False):
-        if can_exist:
-            return cls.run(f'mkdir -p {target.absolute()}')
-        else:
-            return cls.run(f'mkdir {target.absolute()}')
+        try:
+            if can_exist:
+                target.mkdir(parents=True, exist_ok=True)
+            else:
+                target.mkdir()
+        except OSError as e:
+            return CommandResult(1, str(e))
+        return CommandResult(0, '')
 
     @classmethod
     def move(cls, source: Path, target: Path):
-        return cls.run(f'mv {source.absolute()} {target.absolute()}')
+        # Like mv, a rename if on the same file system, or a copy and a removal
+        try:
+            shutil.move(str(source), str(target))
+        except (OSError, shutil.Error) as e:
+            return CommandResult(1, str(e))
+        return CommandResult(0, '')
 
     @classmethod
     def remove(cls, path: Path, is_dir: bool, force: bool):
-        args = ''
-        if is_dir:
-            args += '-r '
-        if force:
-            args += '-f '
-        return cls.run(f'rm {args} {path.absolute()}')
+        try:
+            if is_dir and path.is_dir() and not path.is_symlink():
+                shutil.rmtree(path)
+            else:
+                path.unlink()
+        except FileNotFoundError as e:
+            if not force:
+                return CommandResult(1, str(e))
+        except OSError as e:
+            return CommandResult(1, str(e))
+        return CommandResult(0, '')
 
 
 #
@@ -32,17 +32,27 @@ import java.util.Map;
 
 import io.artemis.pol.MutationPolicy;
 import io.artemis.pol.PolicyFactory;
+import io.artemis.syn.CbManager;
+import io.artemis.syn.CbSpanPrinter;
 import io.artemis.syn.CodeSyn;
 import io.artemis.util.CannotReachHereException;
 import io.artemis.util.Options;
 import spoon.Launcher;
 import spoon.SpoonAPI;
+import spoon.compiler.Environment;
 import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtCompilationUnit;
 import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
 import spoon.support.compiler.VirtualFile;
 import spoon.support.compiler.VirtualFolder;
 
+/**
+ * Artemis is a single mutation session. Everything a session mutates with, i.e., its random
+ * generator, names, logger, Spoon launcher (factory), and code synthesizer are owned by the session.
+ * Only the code brick store (CbManager) can be shared, read-only, by sessions. So, sessions sharing
+ * the same store can run concurrently, each in its own thread.
+ */
 public class Artemis {
     // @formatter:off
     public static final String ARTEMIS_USAGE = 
@@ -50,14 +60,30 @@ public class Artemis {
             + "\n" 
             + "Arguments:\n" 
             + "  -b BRICKS      path to the directory saving code bricks\n"
-            + "  -i INPUT       path to the input .java file\n" 
-            + "  -o OUTPUT      path to an output directory to save the .java mutant\n"
+            + "  -i INPUT       path to the input .java file, or to a directory of seeds, or\n"
+            + "                 to a file listing one seed (.java file) per line\n" 
+            + "  -o OUTPUT      path to an output directory to save the .java mutant(s)\n"
             + "\n" 
             + "Options:\n"
             + "  -m MIN_TRIPS   minimum loop trips (default: 50,000)\n"
             + "  -M MAX_TRIPS   maximum loop trips (default: 100,000,000)\n"
             + "  -s SEED        random seed (default: current time in ms)\n"
             + "  -p POLICY      mutation policy, one of: artemis (default: artemis)\n"
+            + "  -l CLASSPATH   directories or jars, separated by File.pathSeparator, to\n"
+            + "                 resolve the input's dependencies in addition to the input's\n"
+            + "                 directory, e.g., precompiled support classes (default: none)\n"
+            + "  -n MUTANTS     number of mutants to generate for each seed if INPUT is a\n"
+            + "                 directory or a list (default: 1)\n"
+            + "  -j THREADS     number of threads to mutate seeds if INPUT is a directory\n"
+            + "                 or a list (default: number of processors)\n"
+            + "  -w DEPTH       number of code bricks to prepare ahead in background, 0 to\n"
+            + "                 prepare them on demand (default: 4 if INPUT is a directory or\n"
+            + "                 a list, otherwise 0)\n"
+            + "  -c BRICKS      maximum number of code bricks kept loaded (default: unbounded)\n"
+            + "  -C MEMORY      maximum memory (MB) of code bricks kept loaded; least recently\n"
+            + "                 used bricks are unloaded (default: 1/4 of max heap size)\n"
+            + "  -B BLACKLIST   path to a file listing ids of code bricks not to use, one per\n"
+            + "                 line, in addition to those in BRICKS/MANIFEST (default: none)\n"
             + "  -Xkey:value    extra options, currently no available options\n"
             + "  -r             dry-run; will not write mutant to output dir (default: false)\n"
             + "  -v             verbose mode (default: false)\n"
@@ -70,7 +96,12 @@ public class Artemis {
             + "  Java 8. Please don't feed any Java 9+ inputs to Artemis, otherwise, \n"
             + "  Artemis cannot assure its behavior to be expected.\n"
             + "  (2) Currently, Artemis only supports to mutate a the given input .java file.\n"
-            + "  It won't mutate any likely dependencies (i.e., files under classpath). ";
+            + "  It won't mutate any likely dependencies (i.e., files under classpath).\n"
+            + "  (3) If INPUT is a directory or a list, the k-th mutant of seed INPUT/a/Test.java\n"
+            + "  is saved to OUTPUT/a/Test/k/Test.java, along with (links of) the .java files\n"
+            + "  of INPUT/a that have no main method (e.g., FuzzerUtils.java), which are never\n"
+            + "  taken as seeds. Every mutant is mutated by a session seeded by SEED, so a batch\n"
+            + "  is reproducible given the same SEED. ";
     // @formatter:on
 
     // Supported Java version: currently we only support Java 8.
@@ -78,6 +109,7 @@ public class Artemis {
 
     private static final int MIN_LOOP_TRIPS = 500_000;
     private static final int MAX_LOOP_TRIPS = 100_000_000;
+    private static final int BATCH_PREFETCH_DEPTH = 4;
     private static final Map<String, PolicyFactory.PolicyName> POLICY_PLANS = new HashMap<>();
     static {
         POLICY_PLANS.put(PolicyFactory.PolicyName.ARTEMIS.name, PolicyFactory.PolicyName.ARTEMIS);
@@ -107,6 +139,7 @@ public class Artemis {
     // Arguments
     private File mInput;
     private File mCbFolder;
+    private File mCbBlacklist;
     private File mOutput;
 
     // Options: with default values
@@ -114,7 +147,19 @@ public class Artemis {
     private int mMinLoopTrips = MIN_LOOP_TRIPS;
     private int mMaxLoopTrips = MAX_LOOP_TRIPS;
     private PolicyFactory.PolicyName mPolicyName = PolicyFactory.PolicyName.ARTEMIS;
+    private String[] mClasspath = new String[0];
     private final ExtraOpts mExtraOpts = new ExtraOpts();
+    private int mMutantCount = 1;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private int mPrefetchDepth = -1; // Decided by the input unless given, see processOptions()
+    private int mMaxCachedBricks = 0;
+    private long mMaxCachedBytes = Runtime.getRuntime().maxMemory() / 4;
+
+    // Session related stuff
+    private final AxRandom mRand = new AxRandom();
+    private final AxNames mNames = new AxNames();
+    private final AxLog mLog;
+    private CbManager mCbManager;
 
     // Program related stuff
     private MutationPolicy mPolicy;
@@ -125,11 +170,91 @@ public class Artemis {
     private CtClass<?> mTestClass;
 
     public Artemis(Options options) {
-        if (!processOptions(options)) {
-            System.exit(1);
+        this(options, null);
+    }
+
+    /**
+     * Create a mutation session.
+     * 
+     * @param options Options of this session
+     * @param cbManager Code brick store shared with other sessions, or null to load the store
+     *        given by options (i.e., -b BRICKS)
+     */
+    public Artemis(Options options, CbManager cbManager) {
+        mCbManager = cbManager;
+        mLog = new AxLog(AxLog.LEVEL_INFO, System.out, System.err);
+        AxLog prev = AxLog.attach(mLog);
+        try {
+            if (!processOptions(options)) {
+                System.exit(1);
+            }
+        } finally {
+            AxLog.attach(prev);
+        }
+    }
+
+    /**
+     * Create a mutation session from a prototype session. The created session shares the code
+     * brick store and all options with the prototype except the input, output, and random seed.
+     * 
+     * @param proto The prototype session
+     * @param input The input .java file of this session
+     * @param output The output directory of this session
+     * @param seed The random seed of this session
+     * @param log The logger of this session
+     */
+    /* package */ Artemis(Artemis proto, File input, File output, long seed, AxLog log) {
+        mInput = input;
+        mCbFolder = proto.mCbFolder;
+        mCbBlacklist = proto.mCbBlacklist;
+        mOutput = output;
+        mDryRun = proto.mDryRun;
+        mMinLoopTrips = proto.mMinLoopTrips;
+        mMaxLoopTrips = proto.mMaxLoopTrips;
+        mPolicyName = proto.mPolicyName;
+        mClasspath = proto.mClasspath;
+        mPrefetchDepth = proto.mPrefetchDepth;
+        mExtraOpts.putAll(proto.mExtraOpts);
+        mRand.setSeed(seed);
+        mLog = log;
+        mCbManager = proto.mCbManager;
+        AxLog prev = AxLog.attach(mLog);
+        try {
+            mPolicy = PolicyFactory.create(mPolicyName, this, mExtraOpts);
+            mCodeSyn = new CodeSyn(this, mCbManager, mPrefetchDepth);
+        } finally {
+            AxLog.attach(prev);
         }
     }
 
+    public File getInput() {
+        return mInput;
+    }
+
+    public File getOutput() {
+        return mOutput;
+    }
+
+    public boolean isDryRun() {
+        return mDryRun;
+    }
+
+    public AxRandom getRandom() {
+        return mRand;
+    }
+
+    public AxNames getNames() {
+        return mNames;
+    }
+
+    public AxLog getLog() {
+        return mLog;
+    }
+
+    public CbManager getCodeBricks() {
+        return mCbManager;
+    }
+
     public int getMinLoopTrips() {
         return mMinLoopTrips;
     }
@@ -146,6 +271,10 @@ public class Artemis {
         return mSpoon;
     }
 
+    public Factory getFactory() {
+        return mSpoon.getFactory();
+    }
+
     public CtCompilationUnit getTestCompUnit() {
         return mTestCompU;
     }
@@ -155,6 +284,38 @@ public class Artemis {
     }
 
     public void run() {
+        boolean succeeded;
+        if (AxBatch.isBatchInput(mInput)) {
+            AxLog prev = AxLog.attach(mLog);
+            try {
+                succeeded = new AxBatch(this, mMutantCount, mThreads).run();
+            } finally {
+                AxLog.attach(prev);
+            }
+        } else {
+            succeeded = mutate();
+        }
+        if (!succeeded) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Mutate the input .java file and write the mutant to the output directory.
+     * 
+     * @return True if the mutant is generated, or false if the mutation is aborted.
+     */
+    public boolean mutate() {
+        AxLog prev = AxLog.attach(mLog);
+        try {
+            return doMutate();
+        } finally {
+            mCodeSyn.close();
+            AxLog.attach(prev);
+        }
+    }
+
+    private boolean doMutate() {
         AxLog.v("Building Spoon model");
 
         mSpoon = new Launcher();
@@ -163,7 +324,11 @@ public class Artemis {
         mSpoon.getEnvironment().setAutoImports(true);
         mSpoon.getEnvironment().setCommentEnabled(false);
         // Let's temporarily disable all other classpath (e.g., rt.jar) other than the parent folder
-        mSpoon.getEnvironment().setSourceClasspath(new String[] {mInput.getParent()});
+        // and the given classpath
+        String[] classpath = new String[mClasspath.length + 1];
+        classpath[0] = mInput.getParent();
+        System.arraycopy(mClasspath, 0, classpath, 1, mClasspath.length);
+        mSpoon.getEnvironment().setSourceClasspath(classpath);
         // Don't copy any resource when output, just the given test file
         mSpoon.getEnvironment().setCopyResources(false);
         mSpoon.addInputResource(mInput.getAbsolutePath());
@@ -179,10 +344,10 @@ public class Artemis {
         CtType<?> testClass = mTestCompU.getMainType();
         if (testClass == null) {
             AxLog.e("No test class found in the given input file: " + mInput);
-            System.exit(1);
+            return false;
         } else if (!(testClass instanceof CtClass)) {
             AxLog.e("The input file's main (public) type is not a class: " + mInput);
-            System.exit(1);
+            return false;
         }
         mTestClass = (CtClass<?>) testClass;
 
@@ -194,8 +359,26 @@ public class Artemis {
             AxLog.v("Writing (dry-run) mutant to " + mOutput + File.separator + mInput.getName());
         } else {
             AxLog.v("Writing mutant to " + mOutput + File.separator + mInput.getName());
-            mSpoon.prettyprint();
+            // Record which lines of the mutant every code brick spans, see CbSpanPrinter
+            Environment env = mSpoon.getEnvironment();
+            CbSpanPrinter printer = CbSpanPrinter.create(env, mTestClass);
+            env.setPrettyPrinterCreator(printer.creator());
+            try {
+                mSpoon.prettyprint();
+            } finally {
+                env.setPrettyPrinterCreator(null);
+            }
+            try {
+                printer.writeSpans(new File(mOutput, CbSpanPrinter.BRICKS_NAME));
+            } catch (IOException e) {
+                AxLog.e("Cannot write code bricks of the mutant: " + e.getMessage());
+                return false;
+            }
         }
+
+        AxLog.v("Code bricks: " + mCbManager.getCacheStats());
+
+        return true;
     }
 
     private boolean processOptions(Options options) {
@@ -206,7 +389,7 @@ public class Artemis {
             return false;
         }
 
-        if (mCbFolder == null) {
+        if (mCbFolder == null && mCbManager == null) {
             AxLog.e("Code bricks are not given, use --code-brick or -b to give Artemis");
             return false;
         }
@@ -221,13 +404,26 @@ public class Artemis {
             return false;
         }
 
+        if (mPrefetchDepth < 0) {
+            // Bricks prepared ahead but never used are wasted, which is the case for most of them
+            // when a single seed is mutated per JVM (e.g., by artemi), so prefetch only in batches
+            mPrefetchDepth = AxBatch.isBatchInput(mInput) ? BATCH_PREFETCH_DEPTH : 0;
+        }
+
         mPolicy = PolicyFactory.create(mPolicyName, this, mExtraOpts);
-        try {
-            mCodeSyn = new CodeSyn(this, mCbFolder);
-        } catch (IOException e) {
-            AxLog.e(e.getMessage());
-            return false;
+        if (mCbManager == null) {
+            mCbManager = new CbManager(mCbFolder, mMaxCachedBricks, mMaxCachedBytes);
+            try {
+                mCbManager.init();
+                if (mCbBlacklist != null) {
+                    mCbManager.addBlacklist(mCbBlacklist);
+                }
+            } catch (IOException e) {
+                AxLog.e(e.getMessage());
+                return false;
+            }
         }
+        mCodeSyn = new CodeSyn(this, mCbManager, mPrefetchDepth);
 
         return true;
     }
@@ -264,6 +460,14 @@ public class Artemis {
                                 "Path to code brick is not a directory");
                     }
                     break;
+                case "--brick-blacklist":
+                case "-B":
+                    mCbBlacklist = options.getFile(opt);
+                    if (!mCbBlacklist.isFile()) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Path to brick blacklist is not a file");
+                    }
+                    break;
                 case "--output":
                 case "-o":
                     mOutput = options.getFile(opt);
@@ -274,7 +478,7 @@ public class Artemis {
                     break;
                 case "--seed":
                 case "-s":
-                    AxRandom.getInstance().setSeed(options.getLong(opt));
+                    mRand.setSeed(options.getLong(opt));
                     break;
                 case "--min-trips":
                 case "-m":
@@ -284,6 +488,46 @@ public class Artemis {
                 case "-M":
                     mMaxLoopTrips = options.getInteger(opt);
                     break;
+                case "--mutants":
+                case "-n":
+                    mMutantCount = options.getInteger(opt);
+                    if (mMutantCount <= 0) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Number of mutants should be positive");
+                    }
+                    break;
+                case "--threads":
+                case "-j":
+                    mThreads = options.getInteger(opt);
+                    if (mThreads <= 0) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Number of threads should be positive");
+                    }
+                    break;
+                case "--prefetch":
+                case "-w":
+                    mPrefetchDepth = options.getInteger(opt);
+                    if (mPrefetchDepth < 0) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Prefetch depth should be non-negative");
+                    }
+                    break;
+                case "--cached-bricks":
+                case "-c":
+                    mMaxCachedBricks = options.getInteger(opt);
+                    if (mMaxCachedBricks <= 0) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Number of cached bricks should be positive");
+                    }
+                    break;
+                case "--cached-memory":
+                case "-C":
+                    mMaxCachedBytes = ((long) options.getInteger(opt)) << 20;
+                    if (mMaxCachedBytes <= 0) {
+                        throw new Options.IllegalOptionException(opt,
+                                "Memory of cached bricks should be positive");
+                    }
+                    break;
                 case "--policy":
                 case "-p":
                     String policy = options.getString(opt);
@@ -293,6 +537,16 @@ public class Artemis {
                                 "No such mutation policy: " + policy);
                     }
                     break;
+                case "--classpath":
+                case "-l":
+                    mClasspath = options.getString(opt).split(File.pathSeparator);
+                    for (String path : mClasspath) {
+                        if (!new File(path).exists()) {
+                            throw new Options.IllegalOptionException(opt,
+                                    "Classpath does not exist: " + path);
+                        }
+                    }
+                    break;
                 case "-X":
                     String opts = options.getString(opt);
                     for (String keyValue : opts.split(",")) {
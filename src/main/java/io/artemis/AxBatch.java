@@ -0,0 +1,351 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.artemis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * AxBatch mutates a corpus of seeds in a single JVM. The seeds are given either by a directory or
+ * by a list file. For a directory, every .java file under it having a main method is a seed, except
+ * for directories having a MANIFEST file (see ExistingTests of artemi) where only tests listed in
+ * MANIFEST are seeds. For a list file, every non-empty line that is not a comment (#) is the path
+ * to a seed, relative to the list file's directory if not absolute.
+ * 
+ * Every mutant is created by a separate mutation session (an Artemis) and all sessions share the
+ * same code brick store. Sessions are run in a work-stealing pool, and the k-th mutant of seed
+ * INPUT/a/b/Test.java is written to OUTPUT/a/b/Test/k/Test.java, along with its mutation log.
+ * The support sources of the seed, i.e., the other .java files of its directory having no main
+ * method (e.g., FuzzerUtils.java of Java*Fuzzer), are linked (or copied) next to the mutant such
+ * that the mutant compiles where it's written.
+ */
+/* package */ class AxBatch {
+
+    private static final String MANIFEST_NAME = "MANIFEST";
+    private static final String LIST_LINE_COMMENT = "#";
+    private static final String MUTATION_LOG_NAME = "artemis.log";
+    private static final Pattern MAIN_METHOD = Pattern.compile("\\bstatic\\s+void\\s+main\\s*\\(");
+
+    private final Artemis mProto;
+    private final File mInput;
+    private final File mOutput;
+    private final int mMutantCount;
+    private final int mThreads;
+
+    private static class Task {
+        File seed;
+        List<File> supports;
+        File outDir;
+        int index;
+        long rand;
+    }
+
+    private static class Result {
+        Task task;
+        String error; // Null means succeeded
+    }
+
+    /**
+     * Create a batch run mutating every seed given by the prototype session's input.
+     * 
+     * @param proto The prototype session, which provides settings to all sessions of this batch
+     * @param mutantCount Number of mutants to generate for each seed
+     * @param threads Number of threads to run sessions
+     */
+    public AxBatch(Artemis proto, int mutantCount, int threads) {
+        mProto = proto;
+        mInput = proto.getInput();
+        mOutput = proto.getOutput();
+        mMutantCount = mutantCount;
+        mThreads = threads;
+    }
+
+    /**
+     * Return whether the given input should be mutated by a batch, i.e., not a single .java file.
+     */
+    public static boolean isBatchInput(File input) {
+        return input.isDirectory() || !input.getName().endsWith(".java");
+    }
+
+    /**
+     * Run the batch, and log a summary of the batch after all sessions finish.
+     * 
+     * @return True if at least one mutant is generated, or false.
+     */
+    public boolean run() {
+        List<File> seeds;
+        try {
+            seeds = collectSeeds();
+        } catch (IOException e) {
+            AxLog.e("Failed to collect seeds from " + mInput + ": " + e.getMessage());
+            return false;
+        }
+        if (seeds.size() == 0) {
+            AxLog.e("No seeds found in " + mInput);
+            return false;
+        }
+
+        // Seeds of all sessions are decided upfront by the prototype, such that every mutant is
+        // reproducible regardless of how sessions are scheduled to threads.
+        List<Task> tasks = new ArrayList<>(seeds.size() * mMutantCount);
+        for (File seed : seeds) {
+            File seedOut = new File(mOutput, stripJavaSuffix(relativize(seed)));
+            List<File> supports;
+            try {
+                supports = collectSupports(seed);
+            } catch (IOException e) {
+                AxLog.e("Failed to collect support sources of " + seed + ": " + e.getMessage());
+                return false;
+            }
+            for (int i = 0; i < mMutantCount; i++) {
+                Task task = new Task();
+                task.seed = seed;
+                task.supports = supports;
+                task.outDir = new File(seedOut, String.valueOf(i));
+                task.index = i;
+                task.rand = mProto.getRandom().nextLong();
+                tasks.add(task);
+            }
+        }
+
+        AxLog.i("Mutating " + seeds.size() + " seeds (" + mMutantCount + " mutants each) with "
+                + mThreads + " threads");
+        long start = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(mThreads);
+        List<ForkJoinTask<Result>> futures = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            futures.add(pool.submit(() -> mutate(task)));
+        }
+        List<Result> failures = new ArrayList<>();
+        int succeeded = 0;
+        for (ForkJoinTask<Result> future : futures) {
+            Result res;
+            try {
+                res = future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                res = new Result();
+                res.error = e.getMessage();
+            }
+            if (res.error == null) {
+                succeeded++;
+            } else {
+                failures.add(res);
+            }
+        }
+        pool.shutdown();
+
+        long elapsed = System.currentTimeMillis() - start;
+        AxLog.i("Generated " + succeeded + "/" + tasks.size() + " mutants of " + seeds.size()
+                + " seeds in " + (elapsed / 1000.0) + "s");
+        AxLog.i("- " + succeeded + " succeeded");
+        AxLog.i("- " + failures.size() + " failed");
+        AxLog.i("Code bricks: " + mProto.getCodeBricks().getCacheStats());
+        for (Result res : failures) {
+            AxLog.e("Failed to mutate " + res.task.seed + " (#" + res.task.index + "): "
+                    + res.error);
+        }
+
+        return succeeded > 0;
+    }
+
+    private Result mutate(Task task) {
+        Result res = new Result();
+        res.task = task;
+
+        if (!mProto.isDryRun() && !task.outDir.isDirectory() && !task.outDir.mkdirs()) {
+            res.error = "Cannot create output directory " + task.outDir;
+            return res;
+        }
+
+        if (!mProto.isDryRun()) {
+            try {
+                linkSupports(task);
+            } catch (IOException e) {
+                res.error = "Cannot link support sources to " + task.outDir + ": " + e.getMessage();
+                return res;
+            }
+        }
+
+        // Save the mutation log of the session alongside the mutant
+        OutputStream logStream;
+        if (mProto.isDryRun()) {
+            logStream = OutputStream.nullOutputStream();
+        } else {
+            try {
+                logStream = new FileOutputStream(new File(task.outDir, MUTATION_LOG_NAME));
+            } catch (FileNotFoundException e) {
+                res.error = e.getMessage();
+                return res;
+            }
+        }
+
+        try (PrintStream logOut = new PrintStream(logStream, true)) {
+            AxLog log = new AxLog(mProto.getLog().getLevel(), logOut, logOut);
+            Artemis session = new Artemis(mProto, task.seed, task.outDir, task.rand, log);
+            if (!session.mutate()) {
+                res.error = "Mutation aborted, see " + MUTATION_LOG_NAME;
+            }
+        } catch (Throwable t) {
+            res.error = t.getClass().getSimpleName() + ": " + t.getMessage();
+        }
+
+        return res;
+    }
+
+    private List<File> collectSeeds() throws IOException {
+        List<File> seeds = new ArrayList<>();
+        if (mInput.isDirectory()) {
+            try (Stream<Path> paths = Files.walk(mInput.toPath())) {
+                for (Path dir : paths.filter(Files::isDirectory).sorted()
+                        .collect(Collectors.toList())) {
+                    collectSeeds(dir.toFile(), seeds);
+                }
+            }
+        } else {
+            File base = mInput.getAbsoluteFile().getParentFile();
+            try (BufferedReader reader = new BufferedReader(new FileReader(mInput))) {
+                String newLine;
+                while ((newLine = reader.readLine()) != null) {
+                    newLine = newLine.trim();
+                    if (newLine.isEmpty() || newLine.startsWith(LIST_LINE_COMMENT)) {
+                        continue;
+                    }
+                    File seed = new File(newLine);
+                    if (!seed.isAbsolute()) {
+                        seed = new File(base, newLine);
+                    }
+                    if (!seed.isFile()) {
+                        AxLog.w("Seed does not exist, skip: " + seed);
+                        continue;
+                    }
+                    seeds.add(seed);
+                }
+            }
+        }
+        return seeds;
+    }
+
+    private void collectSeeds(File dir, List<File> seeds) throws IOException {
+        File manifest = new File(dir, MANIFEST_NAME);
+        if (manifest.isFile()) {
+            for (String name : Files.readAllLines(manifest.toPath())) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                File seed = new File(dir, name + ".java");
+                if (!seed.isFile()) {
+                    AxLog.w("Seed listed in " + manifest + " does not exist, skip: " + seed);
+                    continue;
+                }
+                seeds.add(seed);
+            }
+        } else {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".java"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (!file.isFile()) {
+                        continue;
+                    }
+                    if (!hasMainMethod(file)) {
+                        AxLog.v("No main method found, skip as a support source: " + file);
+                        continue;
+                    }
+                    seeds.add(file);
+                }
+            }
+        }
+    }
+
+    private List<File> collectSupports(File seed) throws IOException {
+        List<File> supports = new ArrayList<>();
+        File[] files = seed.getAbsoluteFile().getParentFile()
+                .listFiles((d, name) -> name.endsWith(".java") && !name.equals(seed.getName()));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && !hasMainMethod(file)) {
+                    supports.add(file);
+                }
+            }
+        }
+        return supports;
+    }
+
+    private static void linkSupports(Task task) throws IOException {
+        for (File support : task.supports) {
+            Path target = new File(task.outDir, support.getName()).toPath();
+            if (Files.exists(target)) {
+                continue;
+            }
+            try {
+                Files.createLink(target, support.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                // E.g., the output is on another file system
+                Files.copy(support.toPath(), target);
+            }
+        }
+    }
+
+    private static boolean hasMainMethod(File file) throws IOException {
+        // Seeds are never compiled here, a textual check suffices to tell tests from the others
+        String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        return MAIN_METHOD.matcher(source).find();
+    }
+
+    private String relativize(File seed) {
+        Path root = (mInput.isDirectory() ? mInput : mInput.getAbsoluteFile().getParentFile())
+                .getAbsoluteFile().toPath().normalize();
+        Path path = seed.getAbsoluteFile().toPath().normalize();
+        if (path.startsWith(root)) {
+            return root.relativize(path).toString();
+        }
+        // Seeds outside of the root are mirrored by their absolute paths
+        return path.getRoot().relativize(path).toString();
+    }
+
+    private static String stripJavaSuffix(String path) {
+        return path.substring(0, path.length() - ".java".length());
+    }
+}
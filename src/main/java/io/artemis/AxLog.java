@@ -26,75 +26,113 @@ package io.artemis;
 
 import java.io.PrintStream;
 
+/**
+ * Logging of Artemis. Each mutation session owns a logger (with its own level and streams) and
+ * attaches it to the thread running the session; the static logging methods always log to the
+ * logger attached to the calling thread, or to the default logger if none is attached.
+ */
 public class AxLog {
 
     public static final int LEVEL_INFO = 1;
     public static final int LEVEL_VERBOSE = 2;
     public static final int LEVEL_DEBUG = 3;
 
-    private static int sLevel = LEVEL_INFO;
-    private static PrintStream sStdout = System.out;
-    private static PrintStream sStderr = System.err;
+    private static final AxLog sDefault = new AxLog(LEVEL_INFO, System.out, System.err);
+    private static final ThreadLocal<AxLog> sAttached = ThreadLocal.withInitial(() -> sDefault);
+
+    private int mLevel;
+    private PrintStream mStdout;
+    private PrintStream mStderr;
 
     public interface LogBlock {
         void log(PrintStream out, PrintStream err);
     }
 
+    public AxLog(int level, PrintStream out, PrintStream err) {
+        mLevel = level;
+        mStdout = out;
+        mStderr = err;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Attach the given logger to the calling thread.
+     * 
+     * @param log The logger to attach, or null to attach the default logger
+     * @return The logger that was attached to the calling thread before
+     */
+    public static AxLog attach(AxLog log) {
+        AxLog prev = sAttached.get();
+        sAttached.set(log == null ? sDefault : log);
+        return prev;
+    }
+
+    public static AxLog current() {
+        return sAttached.get();
+    }
+
     public static void setLevel(int level) {
-        sLevel = level;
+        current().mLevel = level;
     }
 
     public static void setStdout(PrintStream out) {
-        sStdout = out;
+        current().mStdout = out;
     }
 
     public static void setStderr(PrintStream err) {
-        sStderr = err;
+        current().mStderr = err;
     }
 
     public static void e(String msg) {
-        sStderr.println("***ERROR*** " + msg);
+        current().mStderr.println("***ERROR*** " + msg);
     }
 
     public static void w(String msg) {
-        sStdout.println("\\\\\\WARN/// " + msg);
+        current().mStdout.println("\\\\\\WARN/// " + msg);
     }
 
     public static void i(String msg) {
-        sStdout.println("[INFO] " + msg);
+        current().mStdout.println("[INFO] " + msg);
     }
 
     public static void v(String header, LogBlock b) {
-        if (sLevel >= LEVEL_VERBOSE) {
+        AxLog log = current();
+        if (log.mLevel >= LEVEL_VERBOSE) {
             v(header + ": ");
             v("-----");
-            b.log(sStdout, sStderr);
+            b.log(log.mStdout, log.mStderr);
             v("-----");
         }
     }
 
     public static void v(String msg) {
-        if (sLevel >= LEVEL_VERBOSE) {
-            sStdout.println("[VERB] " + msg);
+        AxLog log = current();
+        if (log.mLevel >= LEVEL_VERBOSE) {
+            log.mStdout.println("[VERB] " + msg);
         }
     }
 
     public static void d(String msg) {
-        if (sLevel >= LEVEL_DEBUG) {
-            sStdout.println("[·DBG] " + msg);
+        AxLog log = current();
+        if (log.mLevel >= LEVEL_DEBUG) {
+            log.mStdout.println("[·DBG] " + msg);
         }
     }
 
     public static void d(String header, LogBlock b) {
-        if (sLevel >= LEVEL_DEBUG) {
+        AxLog log = current();
+        if (log.mLevel >= LEVEL_DEBUG) {
             d(header);
             d("-----");
-            b.log(sStdout, sStderr);
+            b.log(log.mStdout, log.mStderr);
             d("-----");
         }
     }
 
     public static void println(String msg) {
-        sStdout.println(msg);
+        current().mStdout.println(msg);
     }
 }
@@ -24,22 +24,29 @@
 
 package io.artemis;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A generator of fresh names. Every mutation session owns its generator; the code brick store uses
+ * one per brick with a different prefix (see CbManager) such that names given to bricks when
+ * loading never clash with names given by any session, nor with names of other bricks.
+ */
 public class AxNames {
-    private static AxNames sInstance;
-    private int mCount;
+    public static final String DEFAULT_PREFIX = "ax$";
 
-    public static AxNames getInstance() {
-        if (sInstance == null) {
-            sInstance = new AxNames();
-        }
-        return sInstance;
+    private final String mPrefix;
+    private final AtomicInteger mCount;
+
+    public AxNames() {
+        this(DEFAULT_PREFIX);
     }
 
-    public String nextName() {
-        return "ax$" + (mCount++);
+    public AxNames(String prefix) {
+        mPrefix = prefix;
+        mCount = new AtomicInteger(0);
     }
 
-    private AxNames() {
-        mCount = 0;
+    public String nextName() {
+        return mPrefix + mCount.getAndIncrement();
     }
 }
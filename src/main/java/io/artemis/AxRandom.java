@@ -29,15 +29,20 @@ import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
+/**
+ * A random number generator owned by a single mutation session. Sessions never share their
+ * generator such that a session's mutation is always reproducible from its seed, regardless of how
+ * many other sessions are running concurrently in the same JVM.
+ */
 public class AxRandom {
-    private static AxRandom sInstance;
     private final Random mRandom;
 
-    public static AxRandom getInstance() {
-        if (sInstance == null) {
-            sInstance = new AxRandom();
-        }
-        return sInstance;
+    public AxRandom() {
+        mRandom = new Random();
+    }
+
+    public AxRandom(long seed) {
+        mRandom = new Random(seed);
     }
 
     public void setSeed(long seed) {
@@ -154,8 +159,4 @@ public class AxRandom {
     public DoubleStream doubles(double randomNumberOrigin, double randomNumberBound) {
         return mRandom.doubles(randomNumberOrigin, randomNumberBound);
     }
-
-    private AxRandom() {
-        mRandom = new Random();
-    }
 }
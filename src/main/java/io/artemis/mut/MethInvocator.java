@@ -31,8 +31,6 @@ import java.util.stream.Collectors;
 import io.artemis.Artemis;
 import io.artemis.AxChecker;
 import io.artemis.AxLog;
-import io.artemis.AxNames;
-import io.artemis.AxRandom;
 import io.artemis.skl.MiCtrlSeqSkl;
 import io.artemis.skl.MiLoopSkl;
 import io.artemis.syn.CodeSyn;
@@ -85,7 +83,7 @@ public class MethInvocator extends MethMutator {
         CodeSyn syn = mAx.getCodeSyn();
 
         // Create a control field in the class to control the field
-        CtField<Boolean> ctrl = fact.createCtField(/* name= */AxNames.getInstance().nextName(),
+        CtField<Boolean> ctrl = fact.createCtField(/* name= */mAx.getNames().nextName(),
                 fact.createCtTypeReference(Boolean.class), "false");
         if (clazz.isStatic() || clazz.isTopLevel()) {
             ctrl.addModifier(ModifierKind.STATIC);
@@ -111,7 +109,7 @@ public class MethInvocator extends MethMutator {
         meth.getBody().insertBegin(ctrlSeq);
 
         // Randomly select an invocation, synthesize and insert a loop before it
-        CtInvocation<?> invoc = invocations.get(AxRandom.getInstance().nextInt(invocations.size()));
+        CtInvocation<?> invoc = invocations.get(mAx.getRandom().nextInt(invocations.size()));
         PPoint pp = PPoint.beforeStmt(mAx.getTestClass(), invoc);
 
         AxLog.v("Synthesizing new loops with MethInvocator's skeleton");
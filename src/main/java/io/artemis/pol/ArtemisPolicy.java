@@ -51,7 +51,7 @@ public class ArtemisPolicy extends MutationPolicy {
 
     @Override
     public void apply(CtClass<?> clazz) {
-        AxRandom rand = AxRandom.getInstance();
+        AxRandom rand = mAx.getRandom();
 
         // We never mutate initializer blocks, either static or not
         List<CtMethod<?>> methods = new ArrayList<>(clazz.getMethods());
@@ -108,7 +108,7 @@ public class ArtemisPolicy extends MutationPolicy {
             return;
         }
 
-        CtStatement stmt = statements.get(AxRandom.getInstance().nextInt(statements.size()));
+        CtStatement stmt = statements.get(mAx.getRandom().nextInt(statements.size()));
         AxLog.v("Mutating statement", (out, ignoreUnused) -> out.println(stmt));
         mut.mutate(stmt);
     }
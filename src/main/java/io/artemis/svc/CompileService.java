@@ -0,0 +1,221 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.svc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * CompileService is a long-lived javac. It keeps a single JavaCompiler (and its file manager,
+ * which caches the opened platform classes and jars) warm across compilations, such that the
+ * harness (artemi) does not pay the startup of javac for every reference and mutant.
+ * 
+ * The service talks with its client via stdin and stdout, line by line, one request at a time:
+ * // @formatter:off
+ *   (1) On startup, the service writes a line READY.
+ *   (2) The client writes a request: COMPILE\t{out_dir}\t{classpath}\t{file}[\t{file}...]
+ *   (3) The service compiles the files in memory, and writes the class files to out_dir only if
+ *       the compilation succeeds. It replies with a line {OK|ERR} {n} followed by n lines of
+ *       javac's output, exactly as the javac command would print.
+ * // @formatter:on
+ * The service exits when its stdin is closed. Any malformed request is replied an ERR.
+ */
+public class CompileService {
+
+    public static final String READY = "READY";
+    public static final String CMD_COMPILE = "COMPILE";
+    public static final String REPLY_OK = "OK";
+    public static final String REPLY_ERR = "ERR";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private final JavaCompiler mCompiler;
+    private final StandardJavaFileManager mStdManager;
+    private final MemFileManager mMemManager;
+
+    public CompileService(JavaCompiler compiler) {
+        mCompiler = compiler;
+        mStdManager = compiler.getStandardFileManager(null, null, null);
+        mMemManager = new MemFileManager(mStdManager);
+    }
+
+    /**
+     * Serve requests until the input is closed
+     * 
+     * @param in Input to read requests from
+     * @param out Output to write replies to
+     */
+    public void serve(BufferedReader in, PrintStream out) throws IOException {
+        out.println(READY);
+        out.flush();
+
+        String request;
+        while ((request = in.readLine()) != null) {
+            if (request.isEmpty()) {
+                continue;
+            }
+            Reply reply;
+            try {
+                reply = handle(request);
+            } catch (Exception e) {
+                reply = new Reply(false, e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+            String[] lines = reply.output.isEmpty() ? new String[0] : reply.output.split("\n");
+            out.println((reply.ok ? REPLY_OK : REPLY_ERR) + " " + lines.length);
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.flush();
+        }
+    }
+
+    private Reply handle(String request) throws IOException {
+        String[] fields = request.split(FIELD_SEPARATOR);
+        if (!CMD_COMPILE.equals(fields[0]) || fields.length < 4) {
+            return new Reply(false, "Malformed request: " + request);
+        }
+        File outDir = new File(fields[1]);
+        String classpath = fields[2];
+        List<File> files = new ArrayList<>();
+        for (int i = 3; i < fields.length; i++) {
+            files.add(new File(fields[i]));
+        }
+        return compile(outDir, classpath, files);
+    }
+
+    private Reply compile(File outDir, String classpath, List<File> files) throws IOException {
+        mMemManager.clear();
+
+        StringWriter output = new StringWriter();
+        List<String> options = Arrays.asList("-cp", classpath);
+        Iterable<? extends JavaFileObject> units = mStdManager.getJavaFileObjectsFromFiles(files);
+        boolean ok = mCompiler.getTask(output, mMemManager, null, options, null, units).call();
+
+        // Don't leave any partial output for failures, as if nothing is compiled
+        if (ok) {
+            for (Map.Entry<String, ByteArrayOutputStream> cls : mMemManager.getClasses()
+                    .entrySet()) {
+                File classFile = new File(outDir, cls.getKey().replace('.', File.separatorChar)
+                        + JavaFileObject.Kind.CLASS.extension);
+                File parent = classFile.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    return new Reply(false, "Cannot create directory: " + parent);
+                }
+                Files.write(classFile.toPath(), cls.getValue().toByteArray());
+            }
+        }
+
+        return new Reply(ok, output.toString().strip());
+    }
+
+    private static class Reply {
+        final boolean ok;
+        final String output;
+
+        Reply(boolean ok, String output) {
+            this.ok = ok;
+            this.output = output;
+        }
+    }
+
+    private static class MemClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream mBytes;
+
+        MemClassFile(String className, ByteArrayOutputStream bytes) {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension),
+                    Kind.CLASS);
+            mBytes = bytes;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return mBytes;
+        }
+    }
+
+    private static class MemFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        // Class files of the last compilation, keyed by their binary names
+        private final Map<String, ByteArrayOutputStream> mClasses = new HashMap<>();
+
+        MemFileManager(StandardJavaFileManager manager) {
+            super(manager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            mClasses.put(className, bytes);
+            return new MemClassFile(className, bytes);
+        }
+
+        Map<String, ByteArrayOutputStream> getClasses() {
+            return mClasses;
+        }
+
+        void clear() {
+            mClasses.clear();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.err.println("No Java compiler found, is this a JRE?");
+            System.exit(1);
+        }
+        // Nobody but us should write to stdout, it's for replies
+        PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+        new CompileService(compiler).serve(
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                out);
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.svc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.artemis.util.Spoons;
+import spoon.reflect.code.CtDo;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFor;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtStatementList;
+import spoon.reflect.code.CtWhile;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.declaration.CtTypeMember;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/**
+ * ReduceService is the Spoon side of the harness's reducer (artemi/reduce.py), which reduces a
+ * mutant by hierarchical delta debugging. It keeps the Spoon model of the program being reduced,
+ * lists the candidates that can be removed (or shrunk) from it, and prints variants of it with any
+ * subset of the candidates removed. It never tests variants, which is left to the harness.
+ * 
+ * The service talks with its client via stdin and stdout, line by line, one request at a time:
+ * // @formatter:off
+ *   (1) On startup, the service writes a line READY.
+ *   (2) The client loads a program: LOAD\t{file}[\t{bricks}], where bricks is the BRICKS file of
+ *       the program if it's a mutant (see CbSpanPrinter). The service replies with a line OK {n}
+ *       followed by n candidates, one per line: {id}\t{kind}\t{depth}\t{line}, where kind is one
+ *       of: member (a field, method, or nested type), brick (all statements of a code brick),
+ *       stmt (a statement of a block), and trip (a literal of a loop condition, which is shrunk
+ *       to its tenth rather than removed), and depth is the nesting depth of the candidate.
+ *   (3) The client prints a variant: PRINT\t{file}\t{id},{id},..., and the service writes the
+ *       loaded program with the given candidates removed to file. It replies with a line OK 0.
+ * // @formatter:on
+ * Any malformed request, or any request failing, is replied an ERR {n} followed by n lines of the
+ * error. The service exits when its stdin is closed.
+ */
+public class ReduceService {
+
+    public static final String READY = "READY";
+    public static final String CMD_LOAD = "LOAD";
+    public static final String CMD_PRINT = "PRINT";
+    public static final String REPLY_OK = "OK";
+    public static final String REPLY_ERR = "ERR";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String ID_SEPARATOR = ",";
+
+    private static final String KIND_MEMBER = "member";
+    private static final String KIND_BRICK = "brick";
+    private static final String KIND_STMT = "stmt";
+    private static final String KIND_TRIP = "trip";
+
+    // Loop trips smaller than this are not worth shrinking
+    private static final long MIN_TRIP_TO_SHRINK = 10;
+
+    private CtCompilationUnit mUnit;
+    private final List<Candidate> mCandidates;
+
+    public ReduceService() {
+        mUnit = null;
+        mCandidates = new ArrayList<>();
+    }
+
+    /**
+     * Serve requests until the input is closed
+     * 
+     * @param in Input to read requests from
+     * @param out Output to write replies to
+     */
+    public void serve(BufferedReader in, PrintStream out) throws IOException {
+        out.println(READY);
+        out.flush();
+
+        String request;
+        while ((request = in.readLine()) != null) {
+            if (request.isEmpty()) {
+                continue;
+            }
+            List<String> reply = new ArrayList<>();
+            boolean ok;
+            try {
+                ok = handle(request, reply);
+            } catch (Exception e) {
+                reply.clear();
+                reply.add(e.getClass().getSimpleName() + ": " + e.getMessage());
+                ok = false;
+            }
+            out.println((ok ? REPLY_OK : REPLY_ERR) + " " + reply.size());
+            for (String line : reply) {
+                out.println(line.replace('\n', ' '));
+            }
+            out.flush();
+        }
+    }
+
+    private boolean handle(String request, List<String> reply) throws IOException {
+        String[] fields = request.split(FIELD_SEPARATOR);
+        if (CMD_LOAD.equals(fields[0]) && (fields.length == 2 || fields.length == 3)) {
+            load(new File(fields[1]), fields.length == 3 ? new File(fields[2]) : null, reply);
+            return true;
+        } else if (CMD_PRINT.equals(fields[0]) && (fields.length == 2 || fields.length == 3)) {
+            List<Candidate> edits = new ArrayList<>();
+            if (fields.length == 3) {
+                for (String id : fields[2].split(ID_SEPARATOR)) {
+                    edits.add(mCandidates.get(Integer.parseInt(id)));
+                }
+            }
+            print(new File(fields[1]), edits);
+            return true;
+        }
+        reply.add("Malformed request: " + request);
+        return false;
+    }
+
+    private void load(File file, File bricks, List<String> reply) throws IOException {
+        mUnit = Spoons.ensureCompUnitLoaded(file.getAbsolutePath());
+        mCandidates.clear();
+
+        // Members of all types, but the main method that runs the program
+        for (CtType<?> type : elementsOf(CtType.class)) {
+            for (CtTypeMember member : type.getTypeMembers()) {
+                if (!member.isImplicit() && !isMainMethod(member)) {
+                    mCandidates.add(new Candidate(KIND_MEMBER, depthOf(member), member));
+                }
+            }
+        }
+
+        // Bricks, each of which is all the top-most statements spanning its lines
+        if (bricks != null && bricks.exists()) {
+            Map<Integer, Candidate> brickCandidates = new HashMap<>();
+            for (String line : Files.readAllLines(bricks.toPath())) {
+                String[] span = line.trim().split(" ");
+                if (span.length != 3) {
+                    continue;
+                }
+                CtStatement stmt = findStatement(Integer.parseInt(span[1]),
+                        Integer.parseInt(span[2]));
+                if (stmt != null) {
+                    brickCandidates.computeIfAbsent(Integer.parseInt(span[0]),
+                            id -> new Candidate(KIND_BRICK, depthOf(stmt))).targets.add(stmt);
+                }
+            }
+            mCandidates.addAll(brickCandidates.values());
+        }
+
+        // Statements of blocks, incl. those of the bricks, for bricks are likely partially needed
+        for (CtStatementList list : elementsOf(CtStatementList.class)) {
+            for (CtStatement stmt : list.getStatements()) {
+                if (!stmt.isImplicit()) {
+                    mCandidates.add(new Candidate(KIND_STMT, depthOf(stmt), stmt));
+                }
+            }
+        }
+
+        // Integral literals of loop conditions, which are likely loop trips
+        for (CtStatement loop : elementsOf(CtStatement.class)) {
+            CtExpression<?> cond = null;
+            if (loop instanceof CtFor) {
+                cond = ((CtFor) loop).getExpression();
+            } else if (loop instanceof CtWhile) {
+                cond = ((CtWhile) loop).getLoopingExpression();
+            } else if (loop instanceof CtDo) {
+                cond = ((CtDo) loop).getLoopingExpression();
+            }
+            if (cond == null) {
+                continue;
+            }
+            for (CtLiteral<?> lit : cond.getElements(new TypeFilter<>(CtLiteral.class))) {
+                Object value = lit.getValue();
+                if ((value instanceof Integer || value instanceof Long)
+                        && Math.abs(((Number) value).longValue()) >= MIN_TRIP_TO_SHRINK) {
+                    mCandidates.add(new Candidate(KIND_TRIP, depthOf(lit), lit));
+                }
+            }
+        }
+
+        for (int i = 0; i < mCandidates.size(); i++) {
+            Candidate cand = mCandidates.get(i);
+            SourcePosition pos = cand.targets.get(0).getPosition();
+            reply.add(i + FIELD_SEPARATOR + cand.kind + FIELD_SEPARATOR + cand.depth
+                    + FIELD_SEPARATOR + (pos.isValidPosition() ? pos.getLine() : -1));
+        }
+    }
+
+    private void print(File file, List<Candidate> edits) throws IOException {
+        if (mUnit == null) {
+            throw new IllegalStateException("No program is loaded");
+        }
+        // Edit the model in place and undo the edits after printing, in the reverse order, such
+        // that the model is never copied. Edits may overlap, e.g., a statement of a removed method.
+        List<Runnable> undos = new ArrayList<>();
+        try {
+            for (Candidate cand : edits) {
+                for (CtElement target : cand.targets) {
+                    Runnable undo = apply(cand.kind, target);
+                    if (undo != null) {
+                        undos.add(undo);
+                    }
+                }
+            }
+            String source = mUnit.getFactory().getEnvironment().createPrettyPrinter()
+                    .printCompilationUnit(mUnit);
+            Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            for (int i = undos.size() - 1; i >= 0; i--) {
+                undos.get(i).run();
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Runnable apply(String kind, CtElement target) {
+        if (KIND_TRIP.equals(kind)) {
+            CtLiteral lit = (CtLiteral) target;
+            Object value = lit.getValue();
+            if (value instanceof Integer) {
+                lit.setValue((Integer) value / 10);
+            } else {
+                lit.setValue((Long) value / 10);
+            }
+            return () -> lit.setValue(value);
+        }
+        CtElement parent = target.getParent();
+        if (target instanceof CtTypeMember && parent instanceof CtType) {
+            CtType<?> type = (CtType<?>) parent;
+            int index = type.getTypeMembers().indexOf(target);
+            if (index < 0) {
+                return null; // Already removed by an overlapping edit
+            }
+            type.removeTypeMember((CtTypeMember) target);
+            return () -> type.addTypeMemberAt(index, (CtTypeMember) target);
+        } else if (target instanceof CtStatement && parent instanceof CtStatementList) {
+            CtStatementList list = (CtStatementList) parent;
+            int index = indexOf(list.getStatements(), target);
+            if (index < 0) {
+                return null; // Already removed by an overlapping edit
+            }
+            list.removeStatement((CtStatement) target);
+            return () -> list.addStatement(index, (CtStatement) target);
+        }
+        return null;
+    }
+
+    // A compilation unit only refers to its types, which own the elements
+    private <T extends CtElement> List<T> elementsOf(Class<T> clazz) {
+        List<T> elements = new ArrayList<>();
+        for (CtType<?> type : mUnit.getDeclaredTypes()) {
+            elements.addAll(type.getElements(new TypeFilter<>(clazz)));
+        }
+        return elements;
+    }
+
+    private CtStatement findStatement(int line, int endLine) {
+        // The top-most statement of a block which spans exactly the given lines
+        for (CtStatementList list : elementsOf(CtStatementList.class)) {
+            for (CtStatement stmt : list.getStatements()) {
+                SourcePosition pos = stmt.getPosition();
+                if (pos.isValidPosition() && pos.getLine() == line
+                        && pos.getEndLine() == endLine) {
+                    return stmt;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMainMethod(CtTypeMember member) {
+        return member instanceof CtMethod && "main".equals(member.getSimpleName())
+                && member.hasModifier(ModifierKind.STATIC);
+    }
+
+    private static int depthOf(CtElement ele) {
+        int depth = 0;
+        for (CtElement p = ele.getParent(); p != null && !(p instanceof CtCompilationUnit)
+                && p.isParentInitialized(); p = p.getParent()) {
+            if (p instanceof CtStatementList || p instanceof CtType) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    // Statements are compared by identity, equal statements may appear in the same block
+    private static int indexOf(List<CtStatement> stmts, CtElement target) {
+        for (int i = 0; i < stmts.size(); i++) {
+            if (stmts.get(i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Candidate {
+        final String kind;
+        final int depth;
+        final List<CtElement> targets;
+
+        Candidate(String kind, int depth, CtElement... targets) {
+            this.kind = kind;
+            this.depth = depth;
+            this.targets = new ArrayList<>(List.of(targets));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Nobody but us should write to stdout, it's for replies
+        PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+        new ReduceService().serve(
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                out);
+    }
+}
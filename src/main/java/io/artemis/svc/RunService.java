@@ -0,0 +1,336 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.svc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * RunService is a long-lived JVM running programs one after another, each in its own throwaway
+ * class loader, such that the harness (artemi) does not pay the startup of a JVM for every
+ * program. Under -Xint it serves as the reference oracle: no JIT state is carried from one program
+ * to another, and results are independent of the JIT under test. With the JIT enabled, it runs a
+ * batch of mutants whose compilations pile up in the same JVM.
+ * 
+ * The service talks with its client via stdin and stdout, one request at a time:
+ * // @formatter:off
+ *   (1) On startup, the service writes a line READY, or UNSUPPORTED if it cannot trap
+ *       System.exit() (the security manager is disallowed) and exits.
+ *   (2) The client writes a request: RUN\t{classpath}\t{main_class}[\t{arg}...], where the
+ *       classpath lists the program's class directories or jars separated by File.pathSeparator
+ *   (3) The service runs the program and replies with a line {OK|ERR} {exit_code} {n} followed
+ *       by n bytes of the program's stdout and stderr, interleaved as they were written.
+ * // @formatter:on
+ * A program ends when its main method and all non-daemon threads it started end, or when any of
+ * its threads calls System.exit(), whose output after the call is dropped. An uncaught exception
+ * from the main method is reported and exits with 1, as the java launcher does. The service exits
+ * when its stdin is closed, or right after replying if the program left any thread running.
+ * Timeouts are up to the client, which should kill the service when a program does not end in
+ * time. Any malformed request, or any program that cannot be loaded, is replied an ERR.
+ */
+public class RunService {
+
+    public static final String READY = "READY";
+    public static final String UNSUPPORTED = "UNSUPPORTED";
+    public static final String CMD_RUN = "RUN";
+    public static final String REPLY_OK = "OK";
+    public static final String REPLY_ERR = "ERR";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    // Time given to a program's threads to unwind after it exited
+    private static final long UNWIND_MILLIS = 100;
+
+    private final PrintStream mStdout;
+    private final PrintStream mStderr;
+    private final InputStream mStdin;
+    private volatile Program mRunning;
+
+    private RunService() {
+        mStdout = System.out;
+        mStderr = System.err;
+        mStdin = System.in;
+    }
+
+    /**
+     * Serve requests until the input is closed
+     * 
+     * @param in Input to read requests from
+     * @param out Output to write replies to
+     */
+    public void serve(BufferedReader in, PrintStream out) throws IOException {
+        out.println(READY);
+        out.flush();
+
+        String request;
+        while ((request = in.readLine()) != null) {
+            if (request.isEmpty()) {
+                continue;
+            }
+            Program prog = null;
+            boolean ok;
+            int exitCode;
+            byte[] output;
+            try {
+                prog = newProgram(request);
+                run(prog);
+                ok = true;
+                exitCode = prog.getExitCode();
+                output = prog.getOutput();
+            } catch (Exception e) {
+                ok = false;
+                exitCode = -1;
+                output = (e.getClass().getSimpleName() + ": " + e.getMessage())
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            out.println((ok ? REPLY_OK : REPLY_ERR) + " " + exitCode + " " + output.length);
+            out.write(output);
+            out.flush();
+            // Any thread left running would interfere with following programs
+            if (prog != null && prog.group.activeCount() != 0) {
+                Runtime.getRuntime().halt(0);
+            }
+        }
+    }
+
+    private Program newProgram(String request) throws IOException, ReflectiveOperationException {
+        String[] fields = request.split(FIELD_SEPARATOR, -1);
+        if (!CMD_RUN.equals(fields[0]) || fields.length < 3) {
+            throw new IllegalArgumentException("Malformed request: " + request);
+        }
+        // Every program loads its own copy of all classes, including shared support classes, so
+        // no static state is carried from one program to another
+        String[] paths = fields[1].split(File.pathSeparator);
+        URL[] urls = new URL[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            urls[i] = new File(paths[i]).toURI().toURL();
+        }
+        URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+        Method main = Class.forName(fields[2], false, loader).getMethod("main", String[].class);
+        main.setAccessible(true); // The java launcher also runs non-public main classes
+        return new Program(loader, main, Arrays.copyOfRange(fields, 3, fields.length));
+    }
+
+    private void run(Program prog) throws IOException {
+        PrintStream progOut = new PrintStream(prog.output, true);
+        System.setOut(progOut);
+        System.setErr(progOut);
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+        mRunning = prog;
+        try {
+            Thread runner = new Thread(prog.group, prog::runMain, "main");
+            runner.setContextClassLoader(prog.loader);
+            runner.start();
+            prog.awaitEnd(runner);
+            runner.join(UNWIND_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mRunning = null;
+            System.setOut(mStdout);
+            System.setErr(mStderr);
+            System.setIn(mStdin);
+            prog.loader.close();
+        }
+    }
+
+    private static class Program {
+        final URLClassLoader loader;
+        final Method main;
+        final String[] args;
+        final ProgramGroup group = new ProgramGroup();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        private boolean mMainEnded = false;
+        private int mExitCode = 0;
+        private int mExitOutputSize = -1; // Size of the output when exiting, -1 if not exited
+
+        Program(URLClassLoader loader, Method main, String[] args) {
+            this.loader = loader;
+            this.main = main;
+            this.args = args;
+        }
+
+        void runMain() {
+            try {
+                main.invoke(null, (Object) args);
+            } catch (InvocationTargetException e) {
+                reportUncaught(e.getCause());
+            } catch (ExceptionInInitializerError e) {
+                reportUncaught(e);
+            } catch (IllegalAccessException e) {
+                reportUncaught(e);
+            } finally {
+                synchronized (this) {
+                    mMainEnded = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void exit(int status) {
+            if (mExitOutputSize < 0) {
+                mExitCode = status;
+                mExitOutputSize = output.size();
+                notifyAll();
+            }
+        }
+
+        synchronized void awaitEnd(Thread runner) throws InterruptedException {
+            while (mExitOutputSize < 0 && !(mMainEnded && !hasNonDaemonThreads(runner))) {
+                // Non-daemon threads end silently, poll them
+                wait(mMainEnded ? 10 : 0);
+            }
+        }
+
+        synchronized int getExitCode() {
+            return mExitCode;
+        }
+
+        synchronized byte[] getOutput() {
+            byte[] bytes = output.toByteArray();
+            return mExitOutputSize < 0 ? bytes : Arrays.copyOf(bytes, mExitOutputSize);
+        }
+
+        private void reportUncaught(Throwable t) {
+            if (t instanceof ExitTrapped) {
+                return;
+            }
+            System.err.print("Exception in thread \"main\" ");
+            trim(t, Collections.newSetFromMap(new IdentityHashMap<>())).printStackTrace();
+            exit(1);
+        }
+
+        private boolean hasNonDaemonThreads(Thread runner) {
+            Thread[] threads = new Thread[group.activeCount() + 1];
+            int count = group.enumerate(threads);
+            for (int i = 0; i < count; i++) {
+                if (threads[i] != runner && !threads[i].isDaemon()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class ProgramGroup extends ThreadGroup {
+        ProgramGroup() {
+            super("main");
+        }
+
+        @Override
+        public void uncaughtException(Thread t, Throwable e) {
+            if (!(e instanceof ExitTrapped)) {
+                super.uncaughtException(t, e);
+            }
+        }
+    }
+
+    /** Thrown to unwind the thread calling System.exit() from a program */
+    private static class ExitTrapped extends Error {
+        private static final long serialVersionUID = 1L;
+
+        ExitTrapped(int status) {
+            super("System.exit(" + status + ")", null, false, false);
+        }
+    }
+
+    @SuppressWarnings("removal")
+    private class ExitTrap extends SecurityManager {
+        @Override
+        public void checkExit(int status) {
+            Program prog = mRunning;
+            if (prog != null && prog.group.parentOf(Thread.currentThread().getThreadGroup())) {
+                prog.exit(status);
+                throw new ExitTrapped(status);
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {}
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {}
+    }
+
+    // Remove frames of the service and the reflective call from the bottom of the stack traces
+    private static Throwable trim(Throwable t, Set<Throwable> visited) {
+        if (t == null || !visited.add(t)) {
+            return t;
+        }
+        StackTraceElement[] frames = t.getStackTrace();
+        int end = frames.length;
+        while (end > 0 && isServiceFrame(frames[end - 1])) {
+            end--;
+        }
+        if (end != frames.length) {
+            t.setStackTrace(Arrays.copyOf(frames, end));
+        }
+        trim(t.getCause(), visited);
+        for (Throwable suppressed : t.getSuppressed()) {
+            trim(suppressed, visited);
+        }
+        return t;
+    }
+
+    private static boolean isServiceFrame(StackTraceElement frame) {
+        String cls = frame.getClassName();
+        return cls.startsWith(RunService.class.getName()) || cls.equals(Thread.class.getName())
+                || cls.startsWith("java.lang.reflect.") || cls.startsWith("jdk.internal.reflect.");
+    }
+
+    @SuppressWarnings("removal")
+    public static void main(String[] args) throws IOException {
+        // Nobody but us should write to stdout, it's for replies
+        PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+        RunService service = new RunService();
+        try {
+            System.setSecurityManager(service.new ExitTrap());
+        } catch (UnsupportedOperationException | SecurityException e) {
+            out.println(UNSUPPORTED);
+            out.flush();
+            return;
+        }
+        service.serve(
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                out);
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.syn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
+
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/**
+ * CbCache is a bounded, least-recently-used cache of loaded code bricks. A loaded brick holds its
+ * whole Spoon model (and the factory behind it), so the cache bounds both the number of bricks
+ * and their estimated memory footprint. Once either bound is exceeded, least recently used bricks
+ * are evicted; they are reloaded from disk (and renamed alike) when requested again.
+ * 
+ * The memory footprint of a brick is estimated from the number of elements of its compilation
+ * unit, as the estimation does not need to be exact but to be proportional.
+ * 
+ * Every brick is loaded exactly once however many sessions miss it at the same time: the first
+ * session puts a pending entry (a FutureTask) into the cache and loads it, and the others wait for
+ * it rather than loading (and renaming) their own copies only to throw them away.
+ */
+/* package */ class CbCache {
+
+    // Per-brick overhead (mainly the Spoon factory) and per-element cost, measured on JDK 17
+    private static final long EST_BYTES_PER_BRICK = 72 * 1024;
+    private static final long EST_BYTES_PER_ELEMENT = 128;
+
+    private final int mMaxBricks;
+    private final long mMaxBytes;
+    private final Map<Integer, Entry> mEntries;
+    private long mBytes;
+
+    // Stats
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private static class Entry {
+        final FutureTask<CodeBrick> brick;
+        long bytes; // 0 until the brick is loaded
+
+        Entry(FutureTask<CodeBrick> brick) {
+            this.brick = brick;
+            this.bytes = 0;
+        }
+    }
+
+    /**
+     * Create a cache with the given bounds
+     * 
+     * @param maxBricks Maximum number of bricks to keep, or <=0 for no bounds
+     * @param maxBytes Maximum (estimated) bytes of bricks to keep, or <=0 for no bounds
+     */
+    public CbCache(int maxBricks, long maxBytes) {
+        mMaxBricks = maxBricks;
+        mMaxBytes = maxBytes;
+        // Access-ordered, such that the eldest entry is always the least recently used
+        mEntries = new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+        mBytes = 0;
+        mHits = mMisses = mEvictions = 0;
+    }
+
+    /**
+     * Get the brick at the given index, or load it by the given loader if not cached. Loading
+     * happens out of the lock so that sessions loading different bricks don't wait for each other,
+     * while sessions requesting a brick being loaded wait for it to be loaded.
+     * 
+     * @param index Index of the brick
+     * @param loader Loader to load the brick if it's not cached
+     * @return The brick
+     */
+    public CodeBrick get(int index, IntFunction<CodeBrick> loader) {
+        Entry entry;
+        boolean loading = false;
+        synchronized (this) {
+            entry = mEntries.get(index);
+            if (entry != null) {
+                mHits += 1;
+            } else {
+                mMisses += 1;
+                entry = new Entry(new FutureTask<>(() -> loader.apply(index)));
+                mEntries.put(index, entry);
+                loading = true;
+            }
+        }
+
+        if (loading) {
+            entry.brick.run();
+        }
+        CodeBrick brick;
+        try {
+            brick = entry.brick.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when waiting for code brick " + index, e);
+        } catch (ExecutionException e) {
+            if (loading) {
+                // Let's give the next request a chance to load it again
+                synchronized (this) {
+                    mEntries.remove(index, entry);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+
+        if (loading) {
+            long bytes = estimateBytes(brick);
+            synchronized (this) {
+                // The entry might have been evicted while loading, then it's no longer counted
+                if (mEntries.get(index) == entry) {
+                    entry.bytes = bytes;
+                    mBytes += bytes;
+                    evictIfNeeded();
+                }
+            }
+        }
+
+        return brick;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = mHits + mMisses;
+        return "bricks=" + mEntries.size() + (mMaxBricks > 0 ? "/" + mMaxBricks : "") + ", mem="
+                + formatBytes(mBytes) + (mMaxBytes > 0 ? "/" + formatBytes(mMaxBytes) : "")
+                + ", hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+                + ", hit_rate=" + (total == 0 ? 0 : (mHits * 100 / total)) + "%";
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes >= (1 << 20) ? (bytes >> 20) + "MB" : (bytes >> 10) + "KB";
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        // Always keep the most recent one even if it alone exceeds the bounds
+        while (mEntries.size() > 1 && isOverBounds()) {
+            Entry eldest = it.next();
+            it.remove();
+            mBytes -= eldest.bytes;
+            mEvictions += 1;
+        }
+    }
+
+    private boolean isOverBounds() {
+        return (mMaxBricks > 0 && mEntries.size() > mMaxBricks)
+                || (mMaxBytes > 0 && mBytes > mMaxBytes);
+    }
+
+    private static long estimateBytes(CodeBrick brick) {
+        CtElement root = brick.unsafeGetStatements().getParent(CtType.class);
+        int elements = root.getElements(new TypeFilter<>(CtElement.class)).size();
+        return EST_BYTES_PER_BRICK + EST_BYTES_PER_ELEMENT * elements;
+    }
+}
@@ -30,9 +30,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -67,8 +65,12 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
  *     should guarantee that the initializer can be safely assigned to the boxed type. Should ensure
  *     that all initializers don't throw any RuntimeExceptions like NPE, NegativeArraySizeException.
  * // @formatter:on
+ * 
+ * A CbManager is safe to be shared by many mutation sessions running concurrently: every session
+ * should only read the bricks and initializers, and should make its own copy (CodeBrick.copy())
+ * before using a brick.
  */
-/* package */ class CbManager {
+public class CbManager {
 
     private static final String MANIFEST_NAME = "MANIFEST";
     private static final String MANIFEST_LINE_COMMENT = "#";
@@ -89,10 +91,11 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
     private static final String INITZ_CLASS_NAME_DOUBLE = CB_INITZ_CLASS_NAME_PREFIX + "Double";
     private static final String CB_CLASS_NAME_PREFIX = "TplClass";
     private static final String CB_METHOD_NAME = "method";
+    private static final String CB_NAMES_PREFIX = "ax$cb";
 
-    // Code bricks: lazy load
+    // Code bricks: lazy load, and cache bounded
     private final CbLazyLoader mCbLoader;
-    private final Map<Integer, CodeBrick> mCodeBricks;
+    private final CbCache mCodeBricks;
     private final List<Integer> mCbBlist;
     private final File mCbFolder;
     private int mCbCount;
@@ -113,8 +116,20 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
     private CtClass<?> mInitzClsString;
 
     public CbManager(File cbFolder) {
+        this(cbFolder, /* maxCachedBricks */ 0, /* maxCachedBytes */ 0);
+    }
+
+    /**
+     * Create a brick manager keeping at most the given number, or bytes, of bricks loaded. Least
+     * recently used bricks are evicted when exceeding and are reloaded on demand.
+     * 
+     * @param cbFolder Folder of the bricks
+     * @param maxCachedBricks Maximum number of bricks loaded, or <=0 for no bounds
+     * @param maxCachedBytes Maximum (estimated) memory of bricks loaded, or <=0 for no bounds
+     */
+    public CbManager(File cbFolder, int maxCachedBricks, long maxCachedBytes) {
         mCbLoader = new CbLazyLoader();
-        mCodeBricks = new HashMap<>();
+        mCodeBricks = new CbCache(maxCachedBricks, maxCachedBytes);
         mCbBlist = new ArrayList<>();
         mCbFolder = cbFolder;
         mCbCount = -1;
@@ -136,21 +151,50 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
     public void init() throws IOException {
         // Parse manifest to learn the stats of initializer and templates
         File mani = new File(mCbFolder, MANIFEST_NAME);
-        BufferedReader reader = new BufferedReader(new FileReader(mani));
-        String newLine;
-        while ((newLine = reader.readLine()) != null) {
-            if (newLine.startsWith(MANIFEST_LINE_CB_INITZ_PREFIX)) {
-                mInitzCount =
-                        Integer.parseInt(newLine.substring(MANIFEST_LINE_CB_INITZ_PREFIX.length()));
-            } else if (newLine.startsWith(MANIFEST_LINE_CB_PREFIX)) {
-                mCbCount = Integer.parseInt(newLine.substring(MANIFEST_LINE_CB_PREFIX.length()));
-            } else if (newLine.startsWith(MANIFEST_LINE_CB_BL_PREFIX)) {
-                mCbBlist.addAll(Arrays
-                        .stream(newLine.substring(MANIFEST_LINE_CB_BL_PREFIX.length()).split(","))
-                        .map(Integer::parseInt).collect(Collectors.toList()));
-            } else {
-                AxChecker.check(newLine.startsWith(MANIFEST_LINE_COMMENT),
-                        "Unrecognized MANIFEST line: " + newLine);
+        try (BufferedReader reader = new BufferedReader(new FileReader(mani))) {
+            String newLine;
+            while ((newLine = reader.readLine()) != null) {
+                if (newLine.startsWith(MANIFEST_LINE_CB_INITZ_PREFIX)) {
+                    mInitzCount = Integer
+                            .parseInt(newLine.substring(MANIFEST_LINE_CB_INITZ_PREFIX.length()));
+                } else if (newLine.startsWith(MANIFEST_LINE_CB_PREFIX)) {
+                    mCbCount =
+                            Integer.parseInt(newLine.substring(MANIFEST_LINE_CB_PREFIX.length()));
+                } else if (newLine.startsWith(MANIFEST_LINE_CB_BL_PREFIX)) {
+                    mCbBlist.addAll(Arrays
+                            .stream(newLine.substring(MANIFEST_LINE_CB_BL_PREFIX.length())
+                                    .split(","))
+                            .map(Integer::parseInt).collect(Collectors.toList()));
+                } else {
+                    AxChecker.check(newLine.startsWith(MANIFEST_LINE_COMMENT),
+                            "Unrecognized MANIFEST line: " + newLine);
+                }
+            }
+        }
+    }
+
+    /**
+     * Black the bricks listed in the given file in addition to those listed in the MANIFEST. The
+     * file lists a brick id per line; empty lines and lines starting with # are ignored. It's
+     * maintained by the harness from the compilation failures of mutants (see CbSpanPrinter). Call
+     * this before sharing the manager with sessions.
+     * 
+     * @param blacklist File listing the bricks to black
+     * @throws IOException If the file cannot be read
+     */
+    public void addBlacklist(File blacklist) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(blacklist))) {
+            String newLine;
+            while ((newLine = reader.readLine()) != null) {
+                newLine = newLine.trim();
+                if (newLine.isEmpty() || newLine.startsWith(MANIFEST_LINE_COMMENT)) {
+                    continue;
+                }
+                try {
+                    mCbBlist.add(Integer.parseInt(newLine));
+                } catch (NumberFormatException e) {
+                    AxChecker.check(false, "Unrecognized blacklist line: " + newLine);
+                }
             }
         }
     }
@@ -164,10 +208,25 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
         return mCbCount;
     }
 
+    /**
+     * Return the number of code bricks that are not blacked
+     */
+    public int getUsableCbCount() {
+        return mCbCount - (int) mCbBlist.stream().distinct().filter(i -> 0 <= i && i < mCbCount)
+                .count();
+    }
+
     public int getInitzCount() {
         return mInitzCount;
     }
 
+    /**
+     * Return a one-line summary of the brick cache: its size, memory, hits, misses and evictions.
+     */
+    public String getCacheStats() {
+        return mCodeBricks.toString();
+    }
+
     /**
      * Iterate over all existing initializers of the given type
      * 
@@ -175,7 +234,10 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
      * @param con A consumer to consume an initializer
      */
     public void forEachInitz(CtTypeReference<?> type, Consumer<CtExpression<?>> con) {
-        CtClass<?> initzCls = mInitzLoader.ensureLoaded(type);
+        CtClass<?> initzCls;
+        synchronized (mInitzLoader) {
+            initzCls = mInitzLoader.ensureLoaded(type);
+        }
         if (initzCls == mInitzClsArray || initzCls == mInitzClsRef) {
             initzCls.getFields().forEach(field -> {
                 if (field.getType().equals(type)) {
@@ -188,27 +250,27 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
     }
 
     /**
-     * Get the brick of at the given index, or null if the brick is blacked
+     * Get the brick of at the given index, or null if the brick is blacked. The brick returned is
+     * shared by all sessions, so never modify it but use its copy (CodeBrick.copy()) instead.
      * 
      * @param index Index of the code brick
      * @return The code brick at index, or null if blacked
      */
-    public CodeBrick getCodeBrick(int index) {
+    /* package */ CodeBrick getCodeBrick(int index) {
         AxChecker.check(0 <= index && index < mCbCount,
                 "Code brick with index " + index + " does not exist");
         if (mCbBlist.contains(index)) {
             return null;
         }
-        mCbLoader.ensureLoaded(index);
-        return mCodeBricks.get(index);
+        return mCbLoader.ensureLoaded(index);
     }
 
     private class CbLazyLoader {
-        public void ensureLoaded(int index) {
-            if (mCodeBricks.containsKey(index)) {
-                return;
-            }
+        public CodeBrick ensureLoaded(int index) {
+            return mCodeBricks.get(index, this::load);
+        }
 
+        private CodeBrick load(int index) {
             String cbClassName = CB_CLASS_NAME_PREFIX + index;
             File cbFile =
                     new File(mCbFolder.getAbsolutePath() + File.separator + cbClassName + ".java");
@@ -239,20 +301,23 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
             // Rename every parameter (i.e., input of the brick) and local variable and catch
             // variable
             // such that we don't conflict when instantiating the brick and inserting elsewhere.
+            // Names are derived from the brick alone (ax$cb{index}_{k}), such that a brick gets
+            // the same names whichever session loads it, in whatever order, and however many
+            // times it's reloaded after being evicted.
+            AxNames names = new AxNames(CB_NAMES_PREFIX + index + "_");
             for (CtParameter<?> param : cbMethod.getParameters()) {
-                Spoons.renameVariable(param, AxNames.getInstance().nextName());
+                Spoons.renameVariable(param, names.nextName());
             }
             for (CtLocalVariable<?> local : cbMethod
                     .getElements(new TypeFilter<>(CtLocalVariable.class))) {
-                Spoons.renameVariable(local, AxNames.getInstance().nextName());
+                Spoons.renameVariable(local, names.nextName());
             }
             for (CtCatchVariable<?> ex : cbMethod
                     .getElements(new TypeFilter<>(CtCatchVariable.class))) {
-                Spoons.renameVariable(ex, AxNames.getInstance().nextName());
+                Spoons.renameVariable(ex, names.nextName());
             }
 
-            // Save to the cache
-            mCodeBricks.put(index, new CodeBrick(index, cbMethod, cbUnit.getImports()));
+            return new CodeBrick(index, cbMethod, cbUnit.getImports());
         }
     }
 
@@ -0,0 +1,163 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.syn;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import io.artemis.AxChecker;
+import io.artemis.AxLog;
+import io.artemis.AxRandom;
+
+/**
+ * CbPrefetcher decides which code bricks a session uses, and prepares (loads and copies) them.
+ * Bricks are drawn from a random stream of their own, such that which bricks are used does not
+ * depend on when they are prepared. With a positive depth, a background thread walks the stream
+ * ahead and keeps up to depth bricks ready to use in a bounded queue; otherwise, bricks are
+ * prepared on demand by the calling thread. Either way, a session sees exactly the same bricks.
+ * 
+ * Only the insertion-independent work is done in background. Wrapping a brick (ExHandleSkl,
+ * RedirectSkl) instantiates templates with the session's factory which is not thread-safe, and
+ * must happen after the brick's inputs are bound, so it is left to the session's thread.
+ */
+/* package */ class CbPrefetcher {
+
+    private final CbManager mCbManager;
+    private final AxRandom mRand;
+    private final Set<Integer> mUsedCb;
+    private final int mDepth;
+    private final AxLog mLog;
+    private BlockingQueue<Slot> mReady;
+    private Thread mProducer;
+
+    private static class Slot {
+        CodeBrick brick;
+        Throwable error;
+    }
+
+    /**
+     * Create a prefetcher
+     * 
+     * @param cbManager Store of the bricks
+     * @param seed Seed of the random stream to draw bricks
+     * @param depth Number of bricks to prepare ahead in background, or 0 to prepare on demand
+     * @param log Logger of the session
+     */
+    public CbPrefetcher(CbManager cbManager, long seed, int depth, AxLog log) {
+        mCbManager = cbManager;
+        mRand = new AxRandom(seed);
+        mUsedCb = new HashSet<>();
+        mDepth = depth;
+        mLog = log;
+        mReady = null;
+        mProducer = null;
+    }
+
+    /**
+     * Get the next brick that is never used by the session. The brick is already a private copy.
+     * 
+     * @return The next brick
+     */
+    public CodeBrick next() {
+        if (mDepth <= 0) {
+            return prepare();
+        }
+        ensureProducerStarted();
+
+        Slot slot;
+        try {
+            slot = mReady.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when waiting for code bricks", e);
+        }
+        if (slot.error instanceof RuntimeException) {
+            throw (RuntimeException) slot.error;
+        } else if (slot.error instanceof Error) {
+            throw (Error) slot.error;
+        } else if (slot.error != null) {
+            throw new IllegalStateException(slot.error);
+        }
+        return slot.brick;
+    }
+
+    /**
+     * Stop preparing bricks in background. Bricks that are prepared but not used are dropped.
+     */
+    public void close() {
+        if (mProducer != null) {
+            mProducer.interrupt();
+            mProducer = null;
+        }
+    }
+
+    private void ensureProducerStarted() {
+        if (mProducer != null) {
+            return;
+        }
+        mReady = new ArrayBlockingQueue<>(mDepth);
+        mProducer = new Thread(this::produce, "CbPrefetcher");
+        mProducer.setDaemon(true);
+        mProducer.start();
+    }
+
+    private void produce() {
+        AxLog.attach(mLog);
+        while (!Thread.currentThread().isInterrupted()) {
+            Slot slot = new Slot();
+            try {
+                slot.brick = prepare();
+            } catch (Throwable t) {
+                slot.error = t;
+            }
+            try {
+                mReady.put(slot);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (slot.error != null) {
+                return;
+            }
+        }
+    }
+
+    private CodeBrick prepare() {
+        int cbCount = mCbManager.getCbCount();
+        AxChecker.check(mUsedCb.size() < mCbManager.getUsableCbCount(),
+                "All code bricks are used up");
+        CodeBrick brick = null;
+        while (brick == null || mUsedCb.contains(brick.getId())) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("Interrupted when choosing code bricks");
+            }
+            brick = mCbManager.getCodeBrick(mRand.nextInt(cbCount));
+        }
+        mUsedCb.add(brick.getId());
+        // The brick is shared with other sessions, let's use our own copy
+        return brick.copy();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Cong Li (congli@smail.nju.edu.cn, cong.li@inf.ethz.ch)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.artemis.syn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import spoon.compiler.Environment;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.reflect.visitor.PrettyPrinter;
+
+/**
+ * CbSpanPrinter prints a mutant exactly as the auto-import printer does, and meanwhile records
+ * the lines that every code brick spans in the mutant. Elements synthesized from a brick are
+ * marked by CodeSyn with the brick's id; a span is recorded for each marked element printed when
+ * printing the compilation unit of the test class.
+ * 
+ * Spoon prints elements (toString()) by printers created by the environment even in the middle of
+ * printing a compilation unit, e.g., when cleaning imports. The environment should thus never be
+ * given this printer when it's printing, see creator().
+ * 
+ * Spans are saved as a BRICKS file next to the mutant, one span per line: {id} {start} {end},
+ * where lines are 1-based and inclusive. Given the file, the harness can blame compilation
+ * errors of the mutant on the bricks that they fall in.
+ */
+public class CbSpanPrinter extends DefaultJavaPrettyPrinter {
+
+    public static final String BRICKS_NAME = "BRICKS";
+    private static final String BRICK_KEY = "AX_BRICK";
+
+    private final Environment mEnv;
+    private final CtType<?> mTestClass;
+    private final List<int[]> mSpans;
+    private boolean mPrinting;
+    private boolean mRecording;
+
+    private CbSpanPrinter(Environment env, CtType<?> testClass) {
+        super(env);
+        mEnv = env;
+        mTestClass = testClass;
+        mSpans = new ArrayList<>();
+        mPrinting = false;
+        mRecording = false;
+    }
+
+    /**
+     * Create a printer configured the same as the auto-import printer of the given environment
+     * 
+     * @param env Environment of the mutant
+     * @param testClass The test class, spans are recorded when printing its compilation unit
+     * @return The printer
+     */
+    public static CbSpanPrinter create(Environment env, CtType<?> testClass) {
+        DefaultJavaPrettyPrinter proto =
+                (DefaultJavaPrettyPrinter) env.createPrettyPrinterAutoImport();
+        CbSpanPrinter printer = new CbSpanPrinter(env, testClass);
+        printer.setIgnoreImplicit(false);
+        printer.setPreprocessors(proto.getPreprocessors());
+        return printer;
+    }
+
+    /**
+     * Return a creator of printers for the environment to print the mutant by this printer. The
+     * creator gives this printer unless it's printing, otherwise an auto-import printer.
+     * 
+     * @return The creator
+     */
+    public Supplier<PrettyPrinter> creator() {
+        return () -> mPrinting ? mEnv.createPrettyPrinterAutoImport() : this;
+    }
+
+    /**
+     * Mark the element as synthesized from the given brick
+     * 
+     * @param ele Element synthesized from the brick
+     * @param id Id of the brick
+     */
+    /* package */ static void mark(CtElement ele, int id) {
+        ele.putMetadata(BRICK_KEY, id);
+    }
+
+    @Override
+    public void calculate(CtCompilationUnit unit, List<CtType<?>> types) {
+        mPrinting = true;
+        mRecording = types.contains(mTestClass);
+        if (mRecording) {
+            mSpans.clear();
+        }
+        try {
+            super.calculate(unit, types);
+        } finally {
+            mPrinting = false;
+            mRecording = false;
+        }
+    }
+
+    @Override
+    public DefaultJavaPrettyPrinter scan(CtElement ele) {
+        Object id = !mRecording || ele == null ? null : ele.getMetadata(BRICK_KEY);
+        if (id == null) {
+            return super.scan(ele);
+        }
+        int start = currentLine();
+        super.scan(ele);
+        mSpans.add(new int[] {(Integer) id, start, currentLine()});
+        return this;
+    }
+
+    /**
+     * Write the spans recorded so far to the given file
+     * 
+     * @param file File to write, conventionally BRICKS_NAME next to the mutant
+     * @throws IOException If the file cannot be written
+     */
+    public void writeSpans(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int[] span : mSpans) {
+                writer.println(span[0] + " " + span[1] + " " + span[2]);
+            }
+        }
+    }
+
+    // The line where the next (or the last, if ended) non-blank character is printed
+    private int currentLine() {
+        String printed = getPrinterTokenWriter().getPrinterHelper().toString();
+        int line = 1;
+        for (int i = 0; i < printed.length(); i++) {
+            if (printed.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+}
@@ -51,7 +51,8 @@ import spoon.support.util.ModelList;
 
     /**
      * Get the inputs of this code brick. Just take care. The inputs returned are already linked. So
-     * please be sure to clone if they are expected to use elsewhere.
+     * please be sure to clone if they are expected to use elsewhere, and only modify them for a
+     * copy of the brick.
      * 
      * @return The inputs of this code brick.
      */
@@ -66,7 +67,8 @@ import spoon.support.util.ModelList;
 
     /**
      * Get all statements of this code brick. Just take care. The statements returned are already
-     * linked. So please be sure to clone if they are expected to use elsewhere.
+     * linked. So please be sure to clone if they are expected to use elsewhere, or only take them
+     * away from a copy of the brick.
      * 
      * @return All statements of this code brick.
      */
@@ -84,6 +86,21 @@ import spoon.support.util.ModelList;
         return mImports;
     }
 
+    /**
+     * Make a private copy of this code brick. Bricks kept by CbManager are shared by all sessions,
+     * so a session should always use a brick by its copy, which it is free to modify (e.g., rename
+     * its inputs or take its statements away).
+     * 
+     * @return A copy of this code brick
+     */
+    public CodeBrick copy() {
+        CtMethod<?> method = mMethod.clone();
+        // Link the copy to (but don't add it into) the brick class such that refactoring of its
+        // variables can still look up the enclosing scopes
+        method.setParent(mMethod.getParent());
+        return new CodeBrick(mId, method, mImports);
+    }
+
     @Override
     public String toString() {
         return mMethod.toString();
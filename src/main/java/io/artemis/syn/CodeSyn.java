@@ -24,8 +24,6 @@
 
 package io.artemis.syn;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -33,8 +31,8 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import io.artemis.Artemis;
+import io.artemis.AxChecker;
 import io.artemis.AxLog;
-import io.artemis.AxNames;
 import io.artemis.AxRandom;
 import io.artemis.skl.ExHandleSkl;
 import io.artemis.skl.RedirectSkl;
@@ -70,20 +68,36 @@ import spoon.reflect.visitor.filter.TypeFilter;
 public class CodeSyn {
 
     private static final String SYNTHETIC_CODE_KEY = "AX_SYNTHETIC";
+    private static final String BLOCK_PH_KEY = "AX_BLOCK_PH";
 
     private final Artemis mAx;
     private final AxRandom mRand;
     private final CbManager mCbManager;
     private final NewInstance mNewIns;
-    private final Set<Integer> mUsedCb;
+    private final CbPrefetcher mBricks;
 
-    public CodeSyn(Artemis ax, File cbFolder) throws IOException {
+    /**
+     * Create a synthesizer for the given session
+     * 
+     * @param ax The session
+     * @param cbManager Store of code bricks
+     * @param prefetchDepth Number of code bricks to prepare ahead in background, or 0 to prepare
+     *        them on demand
+     */
+    public CodeSyn(Artemis ax, CbManager cbManager, int prefetchDepth) {
         mAx = ax;
-        mRand = AxRandom.getInstance();
-        mCbManager = new CbManager(cbFolder);
-        mCbManager.init();
-        mNewIns = new NewInstance();
-        mUsedCb = new HashSet<>();
+        mRand = ax.getRandom();
+        mCbManager = cbManager;
+        mNewIns = new NewInstance(mRand);
+        // Bricks are drawn from a stream of their own so that prefetching does not change them
+        mBricks = new CbPrefetcher(cbManager, mRand.nextLong(), prefetchDepth, ax.getLog());
+    }
+
+    /**
+     * Release the resources (e.g., background threads) held by this synthesizer
+     */
+    public void close() {
+        mBricks.close();
     }
 
     /**
@@ -167,7 +181,7 @@ public class CodeSyn {
         restoreList.forEach(seg::addStatement);
 
         // Append imports to imp
-        cb.unsafeGetImports().forEach(e -> imp.add(e.clone()));
+        synForCbImports(cb, imp);
 
         return seg;
     }
@@ -189,11 +203,13 @@ public class CodeSyn {
         // For each name of the skeleton, we give it a random one.
         String[] names = new String[skl.getNamesCount()];
         for (int i = 0; i < names.length; i++) {
-            names[i] = AxNames.getInstance().nextName();
+            names[i] = mAx.getNames().nextName();
         }
 
-        // For each block of the skeleton, we fill it by instantiating a code brick.
+        // For each block of the skeleton, we fill it by instantiating a code brick. The skeleton
+        // clones every block it's given, so we give it placeholders and fill them afterwards.
         CtBlock<?>[] blocks = new CtBlock[skl.getBlockCount()];
+        List<List<CtStatement>> bodies = new ArrayList<>(blocks.length);
         for (int i = 0; i < blocks.length; i++) {
             // Choose a random code brick to instantiate
             CodeBrick cb = ensureGetUnusedCb();
@@ -205,19 +221,23 @@ public class CodeSyn {
             synForCbInputs(pp, cb, reusedSet).forEach(loop::addStatement);
 
             // Append the loop with the code brick as body
-            blocks[i] = mAx.getSpoon().getFactory().createBlock();
-            synForCbStmts(cb).forEach(blocks[i]::addStatement);
+            blocks[i] = mAx.getSpoon().getFactory().createCtBlock(newBlockPh(i));
+            bodies.add(synForCbStmts(cb));
 
             // Append required imports
-            cb.unsafeGetImports().forEach(e -> typesToImport.add(e.clone()));
+            synForCbImports(cb, typesToImport);
         }
 
         // Instantiate the loop skeleton with above names and blocks
         // TODO Reuse existing variables and initializers on start/step/trip
-        Spoons.flat(skl.instantiate(mAx, /* start= */ -mRand.nextInt(mAx.getMinLoopTrips()),
+        CtStatement inst = skl.instantiate(mAx, /* start= */ -mRand.nextInt(mAx.getMinLoopTrips()),
                 /* step= */ mRand.nextInt(1, 2),
                 /* trip= */ mRand.nextInt(mAx.getMinLoopTrips(), mAx.getMaxLoopTrips()),
-                /* names= */ names, /* blocks= */ blocks)).forEach(loop::addStatement);
+                /* names= */ names, /* blocks= */ blocks);
+        for (int i = 0; i < blocks.length; i++) {
+            fillBlockPh(inst, i, bodies.get(i));
+        }
+        Spoons.flat(inst).forEach(loop::addStatement);
 
         return loop;
     }
@@ -228,7 +248,7 @@ public class CodeSyn {
         // Create a backup for each var in reusedList, 1-1 mapping
         for (CtVariable<?> reusedVar : reusedList) {
             CtLocalVariable<?> local = fact.createLocalVariable(reusedVar.getType().clone(),
-                    AxNames.getInstance().nextName(), (CtExpression) fact
+                    mAx.getNames().nextName(), (CtExpression) fact
                             .createVariableRead(reusedVar.getReference(), reusedVar.isStatic()));
             local.addModifier(ModifierKind.FINAL);
             backupList.add(local);
@@ -288,7 +308,7 @@ public class CodeSyn {
                 if (reusableSet.size() > 0) {
                     // Randomly select a variable, and rename all input occurrences
                     CtVariable<?> reusedVar =
-                            reusableSet.get(AxRandom.getInstance().nextInt(reusableSet.size()));
+                            reusableSet.get(mRand.nextInt(reusableSet.size()));
                     AxLog.v("Reuse existing variable " + reusedVar + " to fill input " + inp);
                     Spoons.renameVariable(inp, reusedVar.getSimpleName());
                     reusedSet.add(reusedVar);
@@ -298,12 +318,12 @@ public class CodeSyn {
 
             // If there's no reusable variables, let's try to find an existing initializer.
             // We don't always use initializers, let's flip a coin to introduce some randomness.
-            if (AxRandom.getInstance().nextFloat() > 0.5f) {
+            if (mRand.nextFloat() > 0.5f) {
                 List<CtExpression<?>> reusableInitzSet = new ArrayList<>();
                 mCbManager.forEachInitz(inpType, reusableInitzSet::add);
                 if (reusableInitzSet.size() > 0) {
-                    inpInit = reusableInitzSet
-                            .get(AxRandom.getInstance().nextInt(reusableInitzSet.size())).clone();
+                    inpInit =
+                            reusableInitzSet.get(mRand.nextInt(reusableInitzSet.size())).clone();
                     AxLog.v("Reuse existing initializer " + inpInit + " to fill input " + inp);
                 }
             }
@@ -315,19 +335,24 @@ public class CodeSyn {
             }
 
             // It's okay if inpInit is still null.
-            decls.add(fact.createLocalVariable(inpType, inpName, (CtExpression) inpInit));
+            CtLocalVariable<?> decl =
+                    fact.createLocalVariable(inpType, inpName, (CtExpression) inpInit);
+            CbSpanPrinter.mark(decl, cb.getId());
+            decls.add(decl);
         }
 
         return decls;
     }
 
     private List<CtStatement> synForCbStmts(CodeBrick cb) {
-        // The very raw block is the code brick
-        CtBlock<?> blk = cb.unsafeGetStatements().clone();
+        // The very raw block is the code brick, which is already our own copy. So we move its
+        // statements rather than letting the skeleton clone them once more.
+        List<CtStatement> stmts = Spoons.flat(cb.unsafeGetStatements());
 
         // Wrap it with a try-catch to avoid unexpected exceptions from the brick
-        blk = ExHandleSkl.instantiate(mAx, /* exName= */ AxNames.getInstance().nextName(),
-                /* tryBlock= */ blk);
+        CtBlock<?> blk = ExHandleSkl.instantiate(mAx, /* exName= */ mAx.getNames().nextName(),
+                /* tryStmt= */ newBlockPh(0));
+        fillBlockPh(blk, 0, stmts);
 
         // Redirect stdout and stderr to avoid unexpected outputs and recover afterwards
         CtClass<?> rhClass = ensureRhSynOnce();
@@ -335,7 +360,39 @@ public class CodeSyn {
         blk.insertEnd(RedirectSkl.callRecover(mAx, rhClass));
 
         // Let's peel every statement from the block and return parent-uninitialized ones
-        return Spoons.flat(blk);
+        List<CtStatement> peeled = Spoons.flat(blk);
+        peeled.forEach(stmt -> CbSpanPrinter.mark(stmt, cb.getId()));
+        return peeled;
+    }
+
+    private void synForCbImports(CodeBrick cb, List<CtImport> imp) {
+        // Bricks mostly import the same few types, don't clone those that are already imported
+        List<CtImport> existing = mAx.getTestCompUnit().getImports();
+        for (CtImport e : cb.unsafeGetImports()) {
+            if (!imp.contains(e) && !existing.contains(e)) {
+                imp.add(e.clone());
+            }
+        }
+    }
+
+    // A placeholder survives skeleton instantiation since metadata are kept by clones
+    private CtStatement newBlockPh(int id) {
+        CtBlock<?> ph = mAx.getSpoon().getFactory().createBlock();
+        ph.putMetadata(BLOCK_PH_KEY, id);
+        return ph;
+    }
+
+    private void fillBlockPh(CtElement root, int id, List<CtStatement> stmts) {
+        List<CtBlock<?>> phs = root.getElements(new TypeFilter<>(CtBlock.class) {
+            @Override
+            public boolean matches(CtBlock<?> blk) {
+                return super.matches(blk)
+                        && Integer.valueOf(id).equals(blk.getMetadata(BLOCK_PH_KEY));
+            }
+        });
+        AxChecker.check(phs.size() == 1, "Expect exactly 1 block placeholder #" + id + ", but "
+                + phs.size() + " found");
+        phs.get(0).replace(stmts);
     }
 
     private CtClass<?> ensureRhSynOnce() {
@@ -351,12 +408,6 @@ public class CodeSyn {
     }
 
     private CodeBrick ensureGetUnusedCb() {
-        int cbCount = mCbManager.getCbCount();
-        CodeBrick brick = null;
-        while (brick == null || mUsedCb.contains(brick.getId())) {
-            brick = mCbManager.getCodeBrick(mRand.nextInt(cbCount));
-        }
-        mUsedCb.add(brick.getId());
-        return brick;
+        return mBricks.next();
     }
 }
@@ -41,9 +41,12 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
 /* package */ class NewInstance extends Spoons.TypeSwitch<CtExpression<?>> {
 
+    private final AxRandom mRand;
     private Factory mFact;
 
-    public NewInstance() {}
+    public NewInstance(AxRandom rand) {
+        mRand = rand;
+    }
 
     @Override
     protected CtExpression<?> kaseArray(CtArrayTypeReferenceImpl<?> type) {
@@ -58,7 +61,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
         int dimenCount = type.getDimensionCount();
         if (dimenCount == 1) {
             // Don't be too large, otherwise it may occupy too much memory.
-            int size = AxRandom.getInstance().nextInt(1, 10);
+            int size = mRand.nextInt(1, 10);
             for (int i = 0; i < size; i++) {
                 array.addElement(svitch(type.getComponentType()));
             }
@@ -82,7 +85,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseBoolean(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral(AxRandom.getInstance().nextBoolean());
+        return mFact.createLiteral(mRand.nextBoolean());
     }
 
     @Override
@@ -92,7 +95,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseByte(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral((byte) AxRandom.getInstance().nextInt())
+        return mFact.createLiteral((byte) mRand.nextInt())
                 .addTypeCast(mFact.createCtTypeReference(byte.class));
     }
 
@@ -103,7 +106,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseShort(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral((short) AxRandom.getInstance().nextInt())
+        return mFact.createLiteral((short) mRand.nextInt())
                 .addTypeCast(mFact.createCtTypeReference(short.class));
     }
 
@@ -114,7 +117,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseChar(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral((char) AxRandom.getInstance().nextInt(0, 0xFFFF));
+        return mFact.createLiteral((char) mRand.nextInt(0, 0xFFFF));
     }
 
     @Override
@@ -124,7 +127,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseInt(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral(AxRandom.getInstance().nextInt());
+        return mFact.createLiteral(mRand.nextInt());
     }
 
     @Override
@@ -134,7 +137,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseLong(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral(AxRandom.getInstance().nextLong());
+        return mFact.createLiteral(mRand.nextLong());
     }
 
     @Override
@@ -144,7 +147,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseFloat(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral(AxRandom.getInstance().nextFloat());
+        return mFact.createLiteral(mRand.nextFloat());
     }
 
     @Override
@@ -154,7 +157,7 @@ import spoon.support.reflect.reference.CtTypeReferenceImpl;
 
     @Override
     protected CtExpression<?> kaseDouble(CtTypeReferenceImpl<?> type) {
-        return mFact.createLiteral(AxRandom.getInstance().nextDouble());
+        return mFact.createLiteral(mRand.nextDouble());
     }
 
     @Override